@@ -2,10 +2,22 @@ package io.nessus.common;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.LogManager;
 
 import org.slf4j.Logger;
@@ -16,22 +28,42 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonSerializer;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import io.nessus.common.BasicConfig.ConfigSerializer;
 import io.nessus.common.service.BasicLogService;
 import io.nessus.common.service.Service;
+import io.nessus.common.service.ServiceInitializer;
+import io.nessus.common.service.ServiceRegistry;
+import io.nessus.common.service.ServiceState;
 
 @JsonSerialize(using = ConfigSerializer.class)
 public class BasicConfig implements Config {
 
+    /**
+     * The number of services that are initialized at the same time.
+     * The default of one initializes them in order.
+     */
+    public static final ParameterKey<Integer> SERVICE_PARALLELISM = ParameterKey.of("serviceParallelism", Integer.class);
+    
     protected final Logger LOG = LoggerFactory.getLogger(getClass().getName());
     
-    private final Map<Class<Service>, Service> services = new LinkedHashMap<>();
-    private final Parameters params;
+    private final ServiceRegistry services = new ServiceRegistry();
+    private final Set<Service> lazyServices = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile ServiceInitializer initializer;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Set<String> pendingChanges = new LinkedHashSet<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final Object writeLock = new Object();
+    private final URL source;
+    private final ParametersLoader loader;
+    
+    // The values last read from the source
+    private Map<String, Object> sourceValues;
+    
+    // Immutable snapshot, replaced on every write
+    private volatile Parameters params;
     
     static {
         LogManager.getLogManager().reset();
@@ -39,27 +71,178 @@ public class BasicConfig implements Config {
     }
     
     public BasicConfig(URL cfgurl) throws IOException {
+        this(cfgurl, new ParametersLoader());
+    }
+
+    public BasicConfig(URL cfgurl, ParametersLoader loader) throws IOException {
     	AssertArg.notNull(cfgurl, "Null cfgurl");
-    	ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-		Config cfg = mapper.readValue(cfgurl, BasicConfig.class);
-        this.params = cfg.getParameters();
+    	AssertArg.notNull(loader, "Null loader");
+    	this.loader = loader;
+    	this.params = loader.load(cfgurl);
+    	this.sourceValues = params.toMap();
+        this.source = cfgurl;
         addService(new BasicLogService());
     }
 
     @JsonCreator
     public BasicConfig(Map<String, ? extends Object> params) {
-        this.params = new Parameters(params);
+        this.params = new Parameters(params).makeImmutable();
+        this.source = null;
+        this.loader = null;
         addService(new BasicLogService());
     }
 
     public BasicConfig(Parameters params) {
-        this.params = new Parameters(params);
+        this.params = params.makeImmutable();
+        this.source = null;
+        this.loader = null;
         addService(new BasicLogService());
     }
+    
+    private Map<String, Object> readSource(URL cfgurl) throws IOException {
+		return loader.load(cfgurl).toMap();
+    }
+
+    /**
+     * The URL this config was read from, or null
+     */
+    public URL getSource() {
+        return source;
+    }
+    
+    /**
+     * Reads the source again and applies the parameters that changed 
+     * in the source since it was last read. Parameters that were overridden
+     * (i.e. from env vars or system properties) are retained, also when
+     * they change or disappear in the source.
+     * 
+     * Registered listeners are notified of the changed keys.
+     *  
+     * @return the changed keys
+     */
+    public Set<String> reload() throws IOException {
+        AssertState.notNull(source, "Config has no source");
+        
+        Map<String, Object> nextValues = readSource(source);
+        Set<String> changed = new LinkedHashSet<>();
+        
+        synchronized (writeLock) {
+            Map<String, Object> prevValues = sourceValues;
+            for (Entry<String, Object> en : nextValues.entrySet()) {
+                if (!Objects.equals(en.getValue(), prevValues.get(en.getKey())))
+                    changed.add(en.getKey());
+            }
+            for (String key : prevValues.keySet()) {
+                if (!nextValues.containsKey(key))
+                    changed.add(key);
+            }
+            Map<String, Object> current = params.toMap();
+            changed.removeIf(key -> current.containsKey(key) && !Objects.equals(current.get(key), prevValues.get(key)));
+            if (!changed.isEmpty()) {
+                updateParameters(map -> changed.forEach(key -> {
+                    Object value = nextValues.get(key);
+                    if (value != null) map.put(key, value);
+                    else map.remove(key);
+                }));
+            }
+            sourceValues = nextValues;
+        }
+        
+        if (!changed.isEmpty()) {
+            LOG.info("Config reloaded: {}", changed);
+            dispatchChanges();
+        }
+        
+        return changed;
+    }
+    
+    @Override
+    public void addListener(ConfigListener listener) {
+        AssertArg.notNull(listener, "Null listener");
+        subscriptions.add(new Subscription(listener, null, true));
+    }
+    
+    @Override
+    public void onChange(String key, ConfigListener listener) {
+        AssertArg.notNull(key, "Null key");
+        AssertArg.notNull(listener, "Null listener");
+        subscriptions.add(new Subscription(listener, key, false));
+    }
+    
+    @Override
+    public void onChangePrefix(String prefix, ConfigListener listener) {
+        AssertArg.notNull(prefix, "Null prefix");
+        AssertArg.notNull(listener, "Null listener");
+        subscriptions.add(new Subscription(listener, prefix, true));
+    }
+    
+    @Override
+    public void removeListener(ConfigListener listener) {
+        subscriptions.removeIf(sub -> sub.listener == listener);
+    }
+    
+    /**
+     * Notifies listeners of the pending changes.
+     * 
+     * Only one thread dispatches at a time. Changes that are made while 
+     * a dispatch is in progress are coalesced into the next notification
+     * by the dispatching thread. No lock is held while listeners are called.
+     */
+    private void dispatchChanges() {
+        while (dispatching.compareAndSet(false, true)) {
+            try {
+                Set<String> keys = drainChanges();
+                while (!keys.isEmpty()) {
+                    fireConfigChanged(keys);
+                    keys = drainChanges();
+                }
+            } finally {
+                dispatching.set(false);
+            }
+            synchronized (pendingChanges) {
+                if (pendingChanges.isEmpty()) 
+                    break;
+            }
+        }
+    }
+    
+    private Set<String> drainChanges() {
+        synchronized (pendingChanges) {
+            if (pendingChanges.isEmpty())
+                return Collections.emptySet();
+            Set<String> keys = Collections.unmodifiableSet(new LinkedHashSet<>(pendingChanges));
+            pendingChanges.clear();
+            return keys;
+        }
+    }
+    
+    protected void fireConfigChanged(Set<String> keys) {
+        for (Subscription sub : subscriptions) {
+            Set<String> matching = sub.filter(keys);
+            if (!matching.isEmpty()) {
+                notifyListener(sub.listener, matching);
+            }
+        }
+        for (Service srv : services.getServices()) {
+            if (srv instanceof ConfigListener) {
+                notifyListener((ConfigListener) srv, keys);
+            }
+        }
+    }
+    
+    private void notifyListener(ConfigListener listener, Set<String> keys) {
+        try {
+            listener.configChanged(this, keys);
+        } catch (RuntimeException ex) {
+            LOG.error("Config listener failed: " + listener, ex);
+        }
+    }
 
     @Override
 	public void prepare(Map<String, String> mapping) {
 
+		Map<String, Object> values = new LinkedHashMap<>();
+		
 		// Override with env vars
 		
 		for (Entry<String, String> en : mapping.entrySet()) {
@@ -67,7 +250,7 @@ public class BasicConfig implements Config {
 			String value = System.getenv(en.getValue());
 			if (value != null) {
 				LOG.debug("Env {}: {}", en.getValue(), redactValue(key, value));
-				putParameter(key, value);
+				values.put(key, value);
 			}
 		}
 		
@@ -78,9 +261,11 @@ public class BasicConfig implements Config {
 			String value = System.getProperty(key);
 			if (value != null) {
 				LOG.debug("Sys {}: {}", key, redactValue(key, value));
-				putParameter(key, value);
+				values.put(key, value);
 			}
 		}
+		
+		putParameters(values);
     }
     
     public static String redactValue(String key, Object value) {
@@ -98,7 +283,12 @@ public class BasicConfig implements Config {
 
     @Override
     public Parameters getParameters() {
-        return new Parameters(params);
+        return Parameters.mutableCopy(params);
+    }
+
+    @Override
+    public Parameters getSnapshot() {
+        return params;
     }
 
     @Override
@@ -112,40 +302,180 @@ public class BasicConfig implements Config {
     }
 
     @Override
+    public <T> T getParameter(ParameterKey<T> key) {
+        return params.get(key);
+    }
+
+    @Override
+    public <T> T getParameter(ParameterKey<T> key, T defaultValue) {
+        return params.get(key, defaultValue);
+    }
+
+    @Override
+    public int getInt(String name, int defaultValue) {
+        return params.getInt(name, defaultValue);
+    }
+
+    @Override
+    public long getLong(String name, long defaultValue) {
+        return params.getLong(name, defaultValue);
+    }
+
+    @Override
+    public double getDouble(String name, double defaultValue) {
+        return params.getDouble(name, defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(String name, boolean defaultValue) {
+        return params.getBoolean(name, defaultValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
     public <T> T putParameter(String name, T value) {
-        return params.put(name, value);
+        Parameters prev = updateParameters(map -> {
+            if (value != null) map.put(name, value);
+            else map.remove(name);
+        });
+        return (T) prev.toMap().get(name);
+    }
+
+    @Override
+    public void putParameters(Map<String, ? extends Object> values) {
+        if (values.isEmpty()) return;
+        updateParameters(map -> values.forEach((k, v) -> {
+            if (v != null) map.put(k, v);
+            else map.remove(k);
+        }));
+    }
+
+    @Override
+    public void batchUpdate(Runnable updates) {
+        AssertArg.notNull(updates, "Null updates");
+        synchronized (writeLock) {
+            updates.run();
+        }
+        
+        // Dispatch when the outermost write completes
+        if (!Thread.holdsLock(writeLock)) {
+            dispatchChanges();
+        }
+    }
+
+    /**
+     * Applies the given update to a copy of the current parameters
+     * and publishes the result as the next immutable snapshot.
+     * 
+     * Readers never block, concurrent writers are serialized.
+     * 
+     * @return the previous snapshot
+     */
+    protected Parameters updateParameters(Consumer<Map<String, Object>> updater) {
+        Parameters prev;
+        synchronized (writeLock) {
+            prev = params;
+            Map<String, Object> prevMap = prev.toMap();
+            Map<String, Object> map = prev.copyEntries();
+            RecordingMap recorder = new RecordingMap(map);
+            updater.accept(recorder);
+            params = Parameters.wrapImmutable(map);
+            
+            Set<String> changed = new LinkedHashSet<>();
+            for (String key : recorder.touched) {
+                if (map.containsKey(key) != prevMap.containsKey(key) || !Objects.equals(map.get(key), prevMap.get(key)))
+                    changed.add(key);
+            }
+            synchronized (pendingChanges) {
+                pendingChanges.addAll(changed);
+            }
+        }
+        
+        // Dispatch when the outermost write completes
+        if (!Thread.holdsLock(writeLock)) {
+            dispatchChanges();
+        }
+        
+        return prev;
     }
 
     @Override
     public <T extends Service> void addService(T service) {
-    	services.put(service.getType(), service);
+    	services.addService(service);
     }
     
     @Override
-    @SuppressWarnings("unchecked")
-    public <T extends Service> T getService(Class<T> type) {
-        T result = (T) services.get(type);
-        if (result == null) {
-            for (Service srv : services.values()) {
-                if (type.isAssignableFrom(srv.getClass())) {
-                    result = (T) srv;
-                    break;
+    public <T extends Service> void addService(Class<T> type, Supplier<? extends T> supplier) {
+        AssertArg.notNull(supplier, "Null supplier");
+        services.addService(type, () -> {
+            T srv = supplier.get();
+            if (srv != null) {
+                for (Class<? extends Service> dep : srv.getDependencies()) {
+                    AssertState.notNull(getService(dep), "Missing dependency of " + srv.getClass().getName() + ": " + dep.getName());
                 }
+                srv.init(this);
+                lazyServices.add(srv);
+                
+                // Closed with the other services
+                ServiceInitializer aux = initializer;
+                if (aux != null) aux.addService(srv);
             }
-        }
-        return result;
+            return srv;
+        });
+    }
+    
+    @Override
+    public <T extends Service> T getService(Class<T> type) {
+        return services.getService(type);
     }
 
     @Override
 	public void initServices() {
-    	services.values().forEach(srv -> srv.init(this));
+    	createInitializer().initServices();
 	}
 
+    @Override
+    public boolean awaitServices(long timeout, TimeUnit unit) throws InterruptedException {
+        ServiceInitializer aux = initializer;
+        if (aux == null)
+            return services.getServices().isEmpty();
+        return aux.awaitServices(timeout, unit);
+    }
+
+    @Override
+    public ServiceState getServiceState(Class<? extends Service> type) {
+        if (!services.hasService(type))
+            return null;
+        Service srv = services.getService(type, false);
+        ServiceInitializer aux = initializer;
+        if (srv != null && aux != null && aux.getServices().contains(srv))
+            return aux.getState(srv);
+        return srv != null && lazyServices.contains(srv) ? ServiceState.READY : ServiceState.NEW;
+    }
+
     @Override
 	public void closeServices() {
-    	services.values().forEach(srv -> srv.close());
+    	// Close with the initializer that knows about pending initializations
+    	ServiceInitializer aux = initializer;
+    	if (aux == null) 
+    	    aux = createInitializer();
+    	aux.closeServices();
 	}
 
+    /**
+     * Lazy services are initialized when they are created, 
+     * the initializer only closes them.
+     */
+    private ServiceInitializer createInitializer() {
+        List<Service> eager = new ArrayList<>(services.getServices());
+        eager.removeIf(lazyServices::contains);
+        ServiceInitializer aux = new ServiceInitializer(this, eager)
+                .parallelism(getParameter(SERVICE_PARALLELISM, 1));
+        initializer = aux;
+        lazyServices.forEach(aux::addService);
+        return aux;
+    }
+
     @Override
 	public int hashCode() {
 		return params.hashCode();
@@ -156,7 +486,7 @@ public class BasicConfig implements Config {
 		if (this == obj) return true;
 		if (!(obj instanceof Config)) return false;
 		Config other = (Config) obj;
-		return params.equals(other.getParameters());
+		return params.equals(other.getSnapshot());
 	}
 
 	@Override
@@ -164,11 +494,76 @@ public class BasicConfig implements Config {
 		return params.toString();
 	}
 
+	/**
+	 * Records the keys that an update puts or removes 
+	 */
+	private static class RecordingMap extends AbstractMap<String, Object> {
+	    
+	    final Map<String, Object> target;
+	    final Set<String> touched = new LinkedHashSet<>();
+	    
+	    RecordingMap(Map<String, Object> target) {
+	        this.target = target;
+	    }
+
+        @Override
+        public Object get(Object key) {
+            return target.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return target.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            touched.add(key);
+            return target.put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            touched.add((String) key);
+            return target.remove(key);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return Collections.unmodifiableMap(target).entrySet();
+        }
+	}
+	
+	private static class Subscription {
+	    
+	    final ConfigListener listener;
+	    final String key;
+	    final boolean prefix;
+	    
+        Subscription(ConfigListener listener, String key, boolean prefix) {
+            this.listener = listener;
+            this.key = key;
+            this.prefix = prefix;
+        }
+        
+        Set<String> filter(Set<String> keys) {
+            if (key == null) 
+                return keys;
+            if (!prefix) 
+                return keys.contains(key) ? Collections.singleton(key) : Collections.emptySet();
+            Set<String> result = new LinkedHashSet<>();
+            for (String aux : keys) {
+                if (aux.startsWith(key)) result.add(aux);
+            }
+            return result;
+        }
+	}
+	
 	public static class ConfigSerializer extends JsonSerializer<Config> {
 
         @Override
         public void serialize(Config value, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonProcessingException {
-        	Map<String, Object> map = value.getParameters().toMap();
+        	Map<String, Object> map = value.getSnapshot().toMap();
             jgen.writeObject(map);
         }
     }
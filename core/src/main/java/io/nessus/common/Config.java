@@ -2,8 +2,11 @@ package io.nessus.common;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import io.nessus.common.service.Service;
+import io.nessus.common.service.ServiceState;
 
 public interface Config {
 
@@ -21,19 +24,115 @@ public interface Config {
 	
 	List<String> getParameterNames();
 	
+	/**
+	 * Get a modifiable copy of the parameters.
+	 * Changes to the copy do not affect the config.
+	 */
 	Parameters getParameters();
+	
+	/**
+	 * Get the current immutable snapshot of the parameters.
+	 * 
+	 * The snapshot does not change when parameters are 
+	 * put afterwards, it is safe to share between threads.
+	 */
+	default Parameters getSnapshot() {
+	    return getParameters().makeImmutable();
+	}
     
     <T> T getParameter(String name, Class<T> type);
     
     <T> T getParameter(String name, T defaultValue);
     
+    default <T> T getParameter(ParameterKey<T> key) {
+        return getSnapshot().get(key);
+    }
+    
+    default <T> T getParameter(ParameterKey<T> key, T defaultValue) {
+        return getSnapshot().get(key, defaultValue);
+    }
+    
+    default int getInt(String name, int defaultValue) {
+        return getSnapshot().getInt(name, defaultValue);
+    }
+    
+    default long getLong(String name, long defaultValue) {
+        return getSnapshot().getLong(name, defaultValue);
+    }
+    
+    default double getDouble(String name, double defaultValue) {
+        return getSnapshot().getDouble(name, defaultValue);
+    }
+    
+    default boolean getBoolean(String name, boolean defaultValue) {
+        return getSnapshot().getBoolean(name, defaultValue);
+    }
+    
     <T> T putParameter(String name, T value);
     
+    /**
+     * Put all given values in a single update.
+     * A null value removes the parameter.
+     */
+    default void putParameters(Map<String, ? extends Object> values) {
+        batchUpdate(() -> values.forEach(this::putParameter));
+    }
+    
+    /**
+     * Run the given writes as one burst. Listeners receive
+     * a single notification when the updates complete.
+     */
+    default void batchUpdate(Runnable updates) {
+        updates.run();
+    }
+    
+    /**
+     * Listen to all parameter changes.
+     * 
+     * Changes that happen in quick succession may be
+     * delivered to the listener in a single notification.
+     */
+    void addListener(ConfigListener listener);
+    
+    /**
+     * Listen to changes of the given parameter.
+     */
+    void onChange(String key, ConfigListener listener);
+    
+    /**
+     * Listen to changes of parameters that start with the given prefix.
+     */
+    void onChangePrefix(String prefix, ConfigListener listener);
+    
+    void removeListener(ConfigListener listener);
+    
     <T extends Service> void addService(T service);
     
+    /**
+     * Register a service that is created and initialized on the first call to {@link #getService(Class)}.
+     * Until then, it is not part of {@link #initServices()} and {@link #closeServices()}.
+     */
+    <T extends Service> void addService(Class<T> type, Supplier<? extends T> supplier);
+    
     <T extends Service> T getService(Class<T> type);
     
+    /**
+     * Initialize all services and wait for the critical ones.
+     * Other services continue to initialize in the background.
+     */
     void initServices();
     
+    /**
+     * Wait for all services to be initialized.
+     * 
+     * @return true if all services are ready
+     */
+    boolean awaitServices(long timeout, TimeUnit unit) throws InterruptedException;
+    
+    /**
+     * The state of the service of the given type or null if there is no such service
+     */
+    ServiceState getServiceState(Class<? extends Service> type);
+    
     void closeServices();
 }
@@ -0,0 +1,18 @@
+package io.nessus.common;
+
+import java.util.Set;
+
+/**
+ * Gets notified when config parameters change.
+ * 
+ * A Service that implements this interface is 
+ * notified automatically.
+ */
+@FunctionalInterface
+public interface ConfigListener {
+
+    /**
+     * @param keys the names of the added, modified or removed parameters
+     */
+    void configChanged(Config config, Set<String> keys);
+}
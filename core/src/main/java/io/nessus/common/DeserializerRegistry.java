@@ -0,0 +1,183 @@
+package io.nessus.common;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.nessus.common.Parameters.ParameterDeserializer;
+
+/**
+ * The string to value conversions used by {@link Parameters}.
+ *
+ * The deserializer for a target type is resolved once and cached. Resolution
+ * tries an exact match, then enum constants, then a deserializer registered
+ * for a supertype, provided it produces an instance of the target type.
+ */
+final class DeserializerRegistry {
+
+    private static final ParameterDeserializer<Object> UNSUPPORTED = value -> null;
+
+    private static final Map<Class<?>, ParameterDeserializer<?>> registered = new ConcurrentHashMap<>();
+    // Replaced on registration, so that a concurrent resolve cannot repopulate a stale entry
+    private static volatile Map<Class<?>, ParameterDeserializer<?>> resolved = new ConcurrentHashMap<>();
+
+    static {
+        ParameterDeserializer<Boolean> booleanDes = strval -> {
+            if ("0".equals(strval)) return false;
+            if ("1".equals(strval)) return true;
+            return Boolean.valueOf(strval);
+        };
+        ParameterDeserializer<Double> doubleDes = strval -> {
+            if (strval.endsWith("%"))
+                return Double.valueOf(strval.substring(0, strval.length() - 1)) / 100;
+            return Double.valueOf(strval);
+        };
+        register(Boolean.class, booleanDes);
+        register(boolean.class, booleanDes);
+        register(Double.class, doubleDes);
+        register(double.class, doubleDes);
+        register(Integer.class, Integer::valueOf);
+        register(int.class, Integer::valueOf);
+        register(Long.class, Long::valueOf);
+        register(long.class, Long::valueOf);
+        register(BigDecimal.class, strval -> {
+            if (strval.endsWith("%"))
+                return new BigDecimal(strval.substring(0, strval.length() - 1)).divide(new BigDecimal("100"));
+            return new BigDecimal(strval);
+        });
+        register(String.class, strval -> strval);
+        register(Path.class, strval -> Paths.get(strval));
+        register(URL.class, strval -> {
+            try {
+                return new URL(strval);
+            } catch (MalformedURLException ex) {
+                throw CheckedExceptionWrapper.create(ex);
+            }
+        });
+        register(Duration.class, DeserializerRegistry::toDuration);
+        register(InetSocketAddress.class, DeserializerRegistry::toSocketAddress);
+        register(Instant.class, Instant::parse);
+        register(LocalDate.class, LocalDate::parse);
+        register(LocalDateTime.class, LocalDateTime::parse);
+        register(LocalTime.class, LocalTime::parse);
+        register(OffsetDateTime.class, OffsetDateTime::parse);
+        register(ZonedDateTime.class, ZonedDateTime::parse);
+    }
+
+    // Hide ctor
+    private DeserializerRegistry() {
+    }
+
+    static <T> void register(Class<T> type, ParameterDeserializer<T> deserializer) {
+        AssertArg.notNull(type, "Null type");
+        AssertArg.notNull(deserializer, "Null deserializer");
+        registered.put(type, deserializer);
+        resolved = new ConcurrentHashMap<>();
+    }
+
+    static void unregister(Class<?> type) {
+        AssertArg.notNull(type, "Null type");
+        registered.remove(type);
+        resolved = new ConcurrentHashMap<>();
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> ParameterDeserializer<T> resolve(Class<T> type) {
+        Map<Class<?>, ParameterDeserializer<?>> cache = resolved;
+        ParameterDeserializer<?> des = cache.get(type);
+        if (des == null) {
+            des = resolveInternal(type);
+            cache.put(type, des);
+        }
+        AssertState.isTrue(des != UNSUPPORTED, "Unsupported type: " + type.getSimpleName());
+        return (ParameterDeserializer<T>) des;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static ParameterDeserializer<?> resolveInternal(Class<?> type) {
+
+        ParameterDeserializer<?> des = registered.get(type);
+        if (des != null)
+            return des;
+
+        if (type.isEnum()) {
+            Class<? extends Enum> enumType = (Class<? extends Enum>) type;
+            return strval -> Enum.valueOf(enumType, strval);
+        }
+
+        // Breadth first over superclasses and interfaces
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        Set<Class<?>> visited = new HashSet<>();
+        queue.add(type);
+        while (!queue.isEmpty()) {
+            Class<?> aux = queue.poll();
+            if (aux != type && (des = registered.get(aux)) != null) {
+                ParameterDeserializer<?> superDes = des;
+                return strval -> {
+                    Object value = superDes.deserialize(strval);
+                    AssertState.isTrue(value == null || type.isInstance(value), "Unsupported type: " + type.getSimpleName());
+                    return value;
+                };
+            }
+            if (aux.getSuperclass() != null && aux.getSuperclass() != Object.class && visited.add(aux.getSuperclass()))
+                queue.add(aux.getSuperclass());
+            for (Class<?> intf : aux.getInterfaces()) {
+                if (visited.add(intf)) queue.add(intf);
+            }
+        }
+
+        return UNSUPPORTED;
+    }
+
+    /**
+     * Accepts ISO-8601 durations (PT10S) or a number with an optional
+     * unit suffix of ms, s, m, h or d. A plain number is in milliseconds.
+     */
+    private static Duration toDuration(String strval) {
+        if (strval.startsWith("P") || strval.startsWith("-P"))
+            return Duration.parse(strval);
+        int idx = strval.length();
+        while (idx > 0 && Character.isLetter(strval.charAt(idx - 1))) idx--;
+        long amount = Long.parseLong(strval.substring(0, idx).trim());
+        String unit = strval.substring(idx);
+        switch (unit) {
+            case "":
+            case "ms": return Duration.ofMillis(amount);
+            case "s": return Duration.ofSeconds(amount);
+            case "m": return Duration.ofMinutes(amount);
+            case "h": return Duration.ofHours(amount);
+            case "d": return Duration.ofDays(amount);
+            default: throw new IllegalArgumentException("Invalid duration: " + strval);
+        }
+    }
+
+    /**
+     * Accepts host:port, where an IPv6 host is enclosed in brackets.
+     * The address is not resolved, so that parsing does not do a DNS lookup.
+     */
+    private static InetSocketAddress toSocketAddress(String strval) {
+        int idx = strval.lastIndexOf(':');
+        AssertArg.isTrue(idx > 0, "Invalid socket address: " + strval);
+        String host = strval.substring(0, idx);
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        int port = Integer.parseInt(strval.substring(idx + 1));
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+}
@@ -0,0 +1,217 @@
+package io.nessus.common;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A map over an indexed source document, which resolves
+ * a value when it is first requested.
+ *
+ * Copies share the index and the resolved values. Changes to a copy
+ * are kept in an overlay, so that a copy-on-write update does not
+ * resolve the values of the source.
+ */
+final class LazyValueMap extends AbstractMap<String, Object> {
+
+    interface ValueResolver {
+        Object resolve(String key, Object location);
+    }
+
+    // Marks a resolved null value
+    private static final Object NULL_VALUE = new Object();
+
+    private final Source source;
+    private final Map<String, Object> overrides;
+    private final Set<String> removed;
+
+    LazyValueMap(Map<String, Object> index, ValueResolver resolver) {
+        this.source = new Source(index, resolver);
+        this.overrides = new LinkedHashMap<>();
+        this.removed = new HashSet<>();
+    }
+
+    private LazyValueMap(LazyValueMap other) {
+        this.source = other.source;
+        this.overrides = new LinkedHashMap<>(other.overrides);
+        this.removed = new HashSet<>(other.removed);
+    }
+
+    LazyValueMap copy() {
+        return new LazyValueMap(this);
+    }
+
+    /**
+     * The number of keys in the source document
+     */
+    int getIndexedCount() {
+        return source.index.size();
+    }
+
+    /**
+     * The number of source values that were resolved
+     */
+    int getResolvedCount() {
+        return source.resolved.size();
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (overrides.containsKey(key))
+            return overrides.get(key);
+        if (removed.contains(key) || !source.index.containsKey(key))
+            return null;
+        return source.resolve((String) key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (overrides.containsKey(key))
+            return true;
+        return !removed.contains(key) && source.index.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object prev = containsKey(key) ? get(key) : null;
+        overrides.put(key, value);
+        removed.remove(key);
+        return prev;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object prev = containsKey(key) ? get(key) : null;
+        overrides.remove(key);
+        if (source.index.containsKey(key))
+            removed.add((String) key);
+        return prev;
+    }
+
+    @Override
+    public int size() {
+        int size = source.index.size() - removed.size();
+        for (String key : overrides.keySet()) {
+            if (!source.index.containsKey(key) || removed.contains(key)) size++;
+        }
+        return size;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator();
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+
+            @Override
+            public int size() {
+                return LazyValueMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterating over the entries resolves the values on the way.
+     */
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                KeyIterator keys = new KeyIterator();
+                return new Iterator<Entry<String, Object>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        String key = keys.next();
+                        return new SimpleImmutableEntry<>(key, get(key));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return LazyValueMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Source keys in document order, followed by added keys.
+     */
+    private class KeyIterator implements Iterator<String> {
+
+        private final Iterator<String> sourceKeys = source.index.keySet().iterator();
+        private final Iterator<String> addedKeys = overrides.keySet().iterator();
+        private String next = advance();
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            String result = next;
+            next = advance();
+            return result;
+        }
+
+        private String advance() {
+            while (sourceKeys.hasNext()) {
+                String key = sourceKeys.next();
+                if (!removed.contains(key)) return key;
+            }
+            while (addedKeys.hasNext()) {
+                String key = addedKeys.next();
+                if (!source.index.containsKey(key) || removed.contains(key)) return key;
+            }
+            return null;
+        }
+    }
+
+    private static class Source {
+
+        final Map<String, Object> index;
+        final ValueResolver resolver;
+        final ConcurrentHashMap<String, Object> resolved = new ConcurrentHashMap<>();
+
+        Source(Map<String, Object> index, ValueResolver resolver) {
+            this.index = Collections.unmodifiableMap(index);
+            this.resolver = resolver;
+        }
+
+        Object resolve(String key) {
+            Object value = resolved.get(key);
+            if (value == null) {
+                value = resolver.resolve(key, index.get(key));
+                Object prev = resolved.putIfAbsent(key, value != null ? value : NULL_VALUE);
+                if (prev != null) value = prev;
+            }
+            return value != NULL_VALUE ? value : null;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package io.nessus.common;
 
+import java.util.function.Supplier;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.event.Level;
@@ -37,11 +39,45 @@ public abstract class LogSupport {
     }
     
     public void logDebug(String msg, Object... args) {
-        log(Level.DEBUG, msg, args);
+        if (LOG.isDebugEnabled())
+            log(Level.DEBUG, msg, args);
+    }
+
+    /**
+     * The message is only created when DEBUG is enabled
+     */
+    public void logDebug(Supplier<String> msg) {
+        if (LOG.isDebugEnabled())
+            log(Level.DEBUG, msg.get());
+    }
+
+    /**
+     * The arguments are only evaluated when DEBUG is enabled
+     */
+    public void logDebugLazy(String msg, Supplier<?>... args) {
+        if (LOG.isDebugEnabled())
+            log(Level.DEBUG, msg, evaluate(args));
     }
 
     public void logTrace(String msg, Object... args) {
-        log(Level.TRACE, msg, args);
+        if (LOG.isTraceEnabled())
+            log(Level.TRACE, msg, args);
+    }
+
+    /**
+     * The message is only created when TRACE is enabled
+     */
+    public void logTrace(Supplier<String> msg) {
+        if (LOG.isTraceEnabled())
+            log(Level.TRACE, msg.get());
+    }
+
+    /**
+     * The arguments are only evaluated when TRACE is enabled
+     */
+    public void logTraceLazy(String msg, Supplier<?>... args) {
+        if (LOG.isTraceEnabled())
+            log(Level.TRACE, msg, evaluate(args));
     }
 
     public void log(Level level, String msg, Object... args) {
@@ -49,6 +85,9 @@ public abstract class LogSupport {
     }
 
     public void log(Level level, Throwable th, String msg, Object... args) {
+        // INFO and above also go to the PrintStream, whatever the logger level
+        if (level == Level.DEBUG && !LOG.isDebugEnabled() || level == Level.TRACE && !LOG.isTraceEnabled())
+            return;
         getLogService().log(LOG, level, th, msg, args);
     }
 
@@ -60,6 +99,16 @@ public abstract class LogSupport {
     	return LOG.isTraceEnabled();
     }
     
+    private static Object[] evaluate(Supplier<?>[] args) {
+        if (args == null) 
+            return new Object[0];
+        Object[] result = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            result[i] = args[i] != null ? args[i].get() : null;
+        }
+        return result;
+    }
+    
     private LogService logService;
     
 	private LogService getLogService() {
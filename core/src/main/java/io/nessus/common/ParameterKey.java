@@ -0,0 +1,56 @@
+package io.nessus.common;
+
+/**
+ * A typed handle to a named parameter.
+ *
+ * Parameters caches the converted value per key, so that
+ * repeated reads do not pay for the conversion again.
+ *
+ *  static final ParameterKey<Integer> POOL_SIZE = ParameterKey.of("poolSize", Integer.class);
+ *
+ *  int poolSize = config.getParameter(POOL_SIZE);
+ */
+public final class ParameterKey<T> {
+
+    private final String name;
+    private final Class<T> type;
+    private final int hashCode;
+
+    private ParameterKey(String name, Class<T> type) {
+        AssertArg.notNull(name, "Null name");
+        AssertArg.notNull(type, "Null type");
+        this.name = name;
+        this.type = type;
+        this.hashCode = 31 * name.hashCode() + type.hashCode();
+    }
+
+    public static <T> ParameterKey<T> of(String name, Class<T> type) {
+        return new ParameterKey<>(name, type);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof ParameterKey)) return false;
+        ParameterKey<?> other = (ParameterKey<?>) obj;
+        return name.equals(other.name) && type == other.type;
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + type.getSimpleName();
+    }
+}
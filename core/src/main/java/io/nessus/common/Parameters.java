@@ -1,29 +1,34 @@
 package io.nessus.common;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Parameters {
     
-	private static Map<Class<?>, ParameterDeserializer<?>> deserializers = new HashMap<>();
+	// Marks a cached null value
+	private static final Object NULL_VALUE = new Object();
 	
     private Map<String, Object> pmap = new LinkedHashMap<>();
+    private final Map<ParameterKey<?>, Object> keyCache = new ConcurrentHashMap<>();
+    private final Map<String, PrimitiveValue> primitiveCache = new ConcurrentHashMap<>();
+    private LazyValueMap lazyMap;
     private boolean immutable;
     
+    // Order insensitive hash, maintained on mutation once computed
+    private int hash;
+    private volatile boolean hashValid;
+    
     public interface ParameterDeserializer<T> {
     	T deserialize(String value);
     } 
@@ -47,8 +52,51 @@ public class Parameters {
         }
     }
 
+    /**
+     * Wraps the given map in an immutable instance without copying.
+     * The caller must not modify the map afterwards.
+     */
+    static Parameters wrapImmutable(Map<String, Object> values) {
+        Parameters params = new Parameters();
+        params.pmap = Collections.unmodifiableMap(values);
+        params.lazyMap = values instanceof LazyValueMap ? (LazyValueMap) values : null;
+        params.immutable = true;
+        return params;
+    }
+
+    /**
+     * Returns a modifiable copy of the given parameters. 
+     * Values that are resolved lazily stay unresolved.
+     */
+    static Parameters mutableCopy(Parameters params) {
+        Parameters result = new Parameters();
+        result.pmap = params.copyEntries();
+        result.lazyMap = result.pmap instanceof LazyValueMap ? (LazyValueMap) result.pmap : null;
+        return result;
+    }
+
+    /**
+     * Returns a modifiable copy of the entries. 
+     * Values that are resolved lazily stay unresolved.
+     */
+    Map<String, Object> copyEntries() {
+        return lazyMap != null ? lazyMap.copy() : new LinkedHashMap<>(pmap);
+    }
+
+    /**
+     * Register a deserializer for the given type. 
+     * It takes precedence over a built-in conversion.
+     */
     public static <T> void registerDeserializer(Class<T> type, ParameterDeserializer<T> deserializer) {
-    	deserializers.put(type, deserializer);
+    	DeserializerRegistry.register(type, deserializer);
+    }
+    
+    /**
+     * Remove a deserializer that was registered for the given type. 
+     * Built-in conversions for the type are removed as well.
+     */
+    public static void unregisterDeserializer(Class<?> type) {
+        DeserializerRegistry.unregister(type);
     }
     
     public boolean isEmpty() {
@@ -65,7 +113,11 @@ public class Parameters {
     
     @SuppressWarnings("unchecked")
     public <T> T put(Class<T> type, T value) {
-        return (T) pmap.put(toName(type), value);
+        String name = toName(type);
+        T res = (T) pmap.put(name, value);
+        updateHash(name, res, value);
+        invalidate();
+        return res;
     }
     
     @SuppressWarnings("unchecked")
@@ -75,6 +127,8 @@ public class Parameters {
             res = (T) pmap.put(name, value);
         else
             res = (T) pmap.remove(name);
+        updateHash(name, res, value);
+        invalidate();
         return res;
     }
     
@@ -84,12 +138,19 @@ public class Parameters {
     }
     
     public Parameters putAll(Map<String, Object> values) {
-        pmap.putAll(values);
+        for (Entry<String, Object> en : values.entrySet()) {
+            String name = en.getKey();
+            Object value = en.getValue();
+            updateHash(name, pmap.put(name, value), value);
+        }
+        invalidate();
         return this;
     }
     
     public Parameters clear() {
         pmap.clear();
+        hash = 0;
+        invalidate();
         return this;
     }
     
@@ -98,7 +159,7 @@ public class Parameters {
     }
 
     public Parameters makeImmutable() {
-        return new Parameters(this, true);
+        return immutable ? this : new Parameters(this, true);
     }
     
     @SuppressWarnings("unchecked")
@@ -115,6 +176,60 @@ public class Parameters {
         return result != null ? result : defaultValue;
     } 
     
+    /**
+     * Get the converted value for the given key.
+     * 
+     * The conversion happens once and is cached until the
+     * next modification of this parameters instance. 
+     * Array values are returned as a copy of the cached array.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(ParameterKey<T> key) {
+        Object value = keyCache.get(key);
+        if (value == null) {
+            value = convertValue(pmap.get(key.getName()), key.getType());
+            keyCache.put(key, value != null ? value : NULL_VALUE);
+        }
+        if (value instanceof Object[]) 
+            value = ((Object[]) value).clone();
+        return value != NULL_VALUE ? (T) value : null;
+    }
+    
+    public <T> T get(ParameterKey<T> key, T defaultValue) {
+        T result = get(key);
+        return result != null ? result : defaultValue;
+    }
+    
+    public int getInt(String name, int defaultValue) {
+        PrimitiveValue pval = getPrimitive(name);
+        return pval != PrimitiveValue.ABSENT ? pval.intValue() : defaultValue;
+    }
+    
+    public long getLong(String name, long defaultValue) {
+        PrimitiveValue pval = getPrimitive(name);
+        return pval != PrimitiveValue.ABSENT ? pval.longValue() : defaultValue;
+    }
+    
+    public double getDouble(String name, double defaultValue) {
+        PrimitiveValue pval = getPrimitive(name);
+        return pval != PrimitiveValue.ABSENT ? pval.doubleValue() : defaultValue;
+    }
+    
+    public boolean getBoolean(String name, boolean defaultValue) {
+        PrimitiveValue pval = getPrimitive(name);
+        return pval != PrimitiveValue.ABSENT ? pval.booleanValue : defaultValue;
+    }
+    
+    private PrimitiveValue getPrimitive(String name) {
+        PrimitiveValue pval = primitiveCache.get(name);
+        if (pval == null) {
+            Object value = pmap.get(name);
+            pval = value != null && !value.equals("") ? new PrimitiveValue(value) : PrimitiveValue.ABSENT;
+            primitiveCache.put(name, pval);
+        }
+        return pval;
+    }
+    
     @SuppressWarnings("unchecked")
     private <T> T convertValue(Object value, Class<T> type) {
         
@@ -148,44 +263,8 @@ public class Parameters {
             return (T) value;
         
         String strval = value.toString().trim();
-        
-        if (type == Boolean.class) {
-        	if ("0".equals(strval)) value = false;
-        	else if ("1".equals(strval)) value = true;
-        	else value = Boolean.valueOf(strval);
-        } else if (BigDecimal.class == type) {
-        	if (strval.endsWith("%")) {
-                String auxval = strval.substring(0, strval.length() - 1);
-				value = new BigDecimal(auxval).divide(new BigDecimal("100"));
-        	} else {
-                value = new BigDecimal(strval);
-        	}
-        } else if (Double.class == type) {
-        	if (strval.endsWith("%")) {
-                String auxval = strval.substring(0, strval.length() - 1);
-				value = Double.valueOf(auxval) / 100;
-        	} else {
-                value = Double.valueOf(strval);
-        	}
-        } else if (Integer.class == type) {
-            value = new Integer(strval);
-        } else if (Long.class == type) {
-            value = new Long(strval);
-        } else if (Path.class == type) {
-            value = Paths.get(strval);
-        } else if (URL.class == type) {
-            try {
-				value = new URL(strval);
-			} catch (MalformedURLException ex) {
-				throw CheckedExceptionWrapper.create(ex);
-			}
-        } else if (String.class == type) {
-            value = strval;
-        } else {
-        	ParameterDeserializer<T> des = (ParameterDeserializer<T>) deserializers.get(type);
-        	AssertState.notNull(des, "Unsupported type: " + type.getSimpleName());
-        	value = des.deserialize(strval);
-        }
+        ParameterDeserializer<T> des = DeserializerRegistry.resolve(type);
+        value = des.deserialize(strval);
         
         return (T) value;
     }
@@ -203,16 +282,23 @@ public class Parameters {
 
     public <T> T remove(String name, Class<T> type) {
     	T resval = get(name, type);
-    	pmap.remove(name);
+    	updateHash(name, pmap.remove(name), null);
+    	invalidate();
         return resval;
     }
     
     public Object remove(String name) {
     	Object resval = get(name, Object.class);
-    	pmap.remove(name);
+    	updateHash(name, pmap.remove(name), null);
+    	invalidate();
         return resval;
     }
     
+    private void invalidate() {
+        keyCache.clear();
+        primitiveCache.clear();
+    }
+    
     private String toName(Class<?> classKey) {
         return classKey.getSimpleName();
     }
@@ -230,52 +316,222 @@ public class Parameters {
     
     public static Parameters fromString(String spec) {
         AssertArg.isTrue(spec.startsWith("{") && spec.endsWith("}"), "Invalid params spec: " + spec);
-        spec = spec.substring(1, spec.length() - 1);
-        Parameters params = new Parameters();
-        if (spec.length() > 0) {
-            Iterator<String> it = Arrays.asList(spec.split(",")).iterator();
-            while (it.hasNext()) {
-                String keyval = it.next();
-                while (keyval.contains("=[") && !keyval.endsWith("]")) {
-                    keyval += "," + it.next();
-                }
-                int idx = keyval.indexOf('=');
-                String key = keyval.substring(0, idx).trim();
-                String val = keyval.substring(idx + 1).trim();
-                if (val.startsWith("[") && val.endsWith("]")) {
-                    val = val.substring(1, val.length() - 1);
-                    String[] valarr = val.split(",");
-                    List<String> vallst = Arrays.asList(valarr).stream()
-                            .map(v -> v.trim())
-                            .collect(Collectors.toList());
-                    params.put(key, vallst);
-                } else {
-                    params.put(key, val);
-                    
-                }
-            }
-        }
-        return params;
+        return ParametersParser.parse(spec);
+    }
+    
+    public static Parameters fromReader(Reader reader) throws IOException {
+        return new ParametersParser(reader).parse();
     }
     
     @Override
     public int hashCode() {
-        return toString().hashCode();
+        if (!hashValid) {
+            int auxhash = 0;
+            for (Entry<String, Object> en : pmap.entrySet()) {
+                auxhash += entryHash(en.getKey(), en.getValue());
+            }
+            hash = auxhash;
+            hashValid = true;
+        }
+        return hash;
     }
 
+    /**
+     * Parameters are equal when they have the same keys and the values
+     * are equal. Other than lists, arrays and maps, values are equal when 
+     * their string forms are, i.e. 50 equals "50" but not "050" and 
+     * -0.0 does not equal 0.0. Lists and arrays are compared by element.
+     * The order of entries is not significant.
+     */
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
         if (!(obj instanceof Parameters)) return false;
         Parameters other = (Parameters) obj;
-        Map<String, Object> m1 = new LinkedHashMap<>();
-        Map<String, Object> m2 = new LinkedHashMap<>();
-        pmap.keySet().stream().sorted().forEach(k -> m1.put(k, pmap.get(k)));
-        other.pmap.keySet().stream().sorted().forEach(k -> m2.put(k, other.pmap.get(k)));
-        return m1.toString().equals(m2.toString());
+        if (pmap.size() != other.pmap.size()) return false;
+        if (hashCode() != other.hashCode()) return false;
+        for (Entry<String, Object> en : pmap.entrySet()) {
+            Object value = en.getValue();
+            Object otherValue = other.pmap.get(en.getKey());
+            if (otherValue == null && !other.pmap.containsKey(en.getKey())) return false;
+            if (!valueEquals(value, otherValue)) return false;
+        }
+        return true;
+    }
+    
+    private void updateHash(String name, Object prev, Object next) {
+        if (hashValid) {
+            hash += entryHash(name, next) - entryHash(name, prev);
+        }
+    }
+    
+    private static int entryHash(String name, Object value) {
+        if (value == null) return 0;
+        return name.hashCode() ^ valueHash(value);
+    }
+    
+    // Consistent with valueEquals: a typed value and its string form hash alike
+    private static int valueHash(Object value) {
+        if (value == null) return 0;
+        if (value instanceof List || value.getClass().isArray()) {
+            List<?> list = asList(value);
+            int result = 1;
+            for (Object el : list) {
+                result = 31 * result + valueHash(el);
+            }
+            return result;
+        }
+        if (value instanceof Map) {
+            int result = 0;
+            for (Entry<?, ?> en : ((Map<?, ?>) value).entrySet()) {
+                result += (en.getKey() != null ? en.getKey().hashCode() : 0) ^ valueHash(en.getValue());
+            }
+            return result;
+        }
+        return value.toString().hashCode();
+    }
+    
+    private static boolean valueEquals(Object v1, Object v2) {
+        if (v1 == v2) return true;
+        if (v1 == null || v2 == null) return false;
+        boolean list1 = v1 instanceof List || v1.getClass().isArray();
+        boolean list2 = v2 instanceof List || v2.getClass().isArray();
+        if (list1 && list2) {
+            List<?> l1 = asList(v1);
+            List<?> l2 = asList(v2);
+            if (l1.size() != l2.size()) return false;
+            for (int i = 0; i < l1.size(); i++) {
+                if (!valueEquals(l1.get(i), l2.get(i))) return false;
+            }
+            return true;
+        }
+        boolean map1 = v1 instanceof Map;
+        boolean map2 = v2 instanceof Map;
+        if (map1 && map2) {
+            Map<?, ?> m1 = (Map<?, ?>) v1;
+            Map<?, ?> m2 = (Map<?, ?>) v2;
+            if (m1.size() != m2.size()) return false;
+            for (Entry<?, ?> en : m1.entrySet()) {
+                if (!m2.containsKey(en.getKey()) || !valueEquals(en.getValue(), m2.get(en.getKey()))) return false;
+            }
+            return true;
+        }
+        if (list1 || list2 || map1 || map2) return false;
+        
+        // Values of the same type do not need to be rendered
+        if (v1.getClass() == v2.getClass()) return v1.equals(v2);
+        if (isIntegral(v1) && isIntegral(v2)) return ((Number) v1).longValue() == ((Number) v2).longValue();
+        return v1.toString().equals(v2.toString());
+    }
+    
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+    
+    private static List<?> asList(Object value) {
+        if (value instanceof List) return (List<?>) value;
+        if (value instanceof Object[]) return Arrays.asList((Object[]) value);
+        int len = Array.getLength(value);
+        List<Object> result = new ArrayList<>(len);
+        for (int i = 0; i < len; i++) {
+            result.add(Array.get(value, i));
+        }
+        return result;
     }
 
     public String toString() {
         return pmap.toString();
     }
+
+    /**
+     * The unboxed forms of a parameter value, parsed once 
+     * with the same rules that apply to the boxed types.
+     */
+    private static final class PrimitiveValue {
+        
+        static final PrimitiveValue ABSENT = new PrimitiveValue();
+        
+        final String strval;
+        final boolean isLong;
+        final long longValue;
+        final boolean isDouble;
+        final double doubleValue;
+        final boolean booleanValue;
+        
+        private PrimitiveValue() {
+            strval = null;
+            isLong = isDouble = booleanValue = false;
+            longValue = 0;
+            doubleValue = 0;
+        }
+        
+        PrimitiveValue(Object value) {
+            strval = value.toString().trim();
+            
+            boolean auxLong = false;
+            long auxLongValue = 0;
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                auxLong = true;
+                auxLongValue = ((Number) value).longValue();
+            } else {
+                // Other numbers convert through their string form, like the boxed types
+                try {
+                    auxLongValue = Long.parseLong(strval);
+                    auxLong = true;
+                } catch (NumberFormatException ex) {
+                    // not a long
+                }
+            }
+            isLong = auxLong;
+            longValue = auxLongValue;
+            
+            boolean auxDouble = false;
+            double auxDoubleValue = 0;
+            if (value instanceof Number && !(value instanceof BigDecimal)) {
+                auxDouble = true;
+                auxDoubleValue = ((Number) value).doubleValue();
+            } else {
+                try {
+                    if (strval.endsWith("%")) {
+                        auxDoubleValue = Double.parseDouble(strval.substring(0, strval.length() - 1)) / 100;
+                    } else {
+                        auxDoubleValue = Double.parseDouble(strval);
+                    }
+                    auxDouble = true;
+                } catch (NumberFormatException ex) {
+                    // not a double
+                }
+            }
+            isDouble = auxDouble;
+            doubleValue = auxDoubleValue;
+            
+            if (value instanceof Boolean) {
+                booleanValue = (Boolean) value;
+            } else if ("0".equals(strval)) {
+                booleanValue = false;
+            } else if ("1".equals(strval)) {
+                booleanValue = true;
+            } else {
+                booleanValue = Boolean.parseBoolean(strval);
+            }
+        }
+        
+        int intValue() {
+            if (!isLong || longValue != (int) longValue) 
+                throw new NumberFormatException("For input string: \"" + strval + "\"");
+            return (int) longValue;
+        }
+        
+        long longValue() {
+            if (!isLong) 
+                throw new NumberFormatException("For input string: \"" + strval + "\"");
+            return longValue;
+        }
+        
+        double doubleValue() {
+            if (!isDouble) 
+                throw new NumberFormatException("For input string: \"" + strval + "\"");
+            return doubleValue;
+        }
+    }
 }
@@ -0,0 +1,426 @@
+package io.nessus.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import io.nessus.common.utils.StreamUtils;
+
+/**
+ * Loads parameters from a YAML or JSON document in a single pass
+ * over the token stream, without an intermediate object model.
+ *
+ * Nested objects become maps or, when flattening is enabled,
+ * parameters with dotted keys. Arrays become lists.
+ *
+ * In lazy mode, the loader only indexes the top-level keys of the document
+ * with the byte offsets of their values in the source. A value is parsed 
+ * from its bytes when it is first requested. Aliases that span top-level keys are not supported in this mode.
+ *
+ * With a snapshot path, the loaded parameters are also written in binary form.
+ * A later load of an unchanged document reads the snapshot instead of parsing.
+ */
+public class ParametersLoader {
+
+    static final Logger LOG = LoggerFactory.getLogger(ParametersLoader.class);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final YAMLFactory yamlFactory = new YAMLFactory();
+
+    private boolean flatten;
+    private boolean lazy;
+    private Path snapshot;
+    private LazyValueMap lazyMap;
+    private long bytesParsed;
+    private long loadTime;
+    private int entryCount;
+
+    /**
+     * Flatten nested objects to dotted keys i.e. {a: {b: 1}} becomes {a.b: 1}
+     */
+    public ParametersLoader flatten(boolean flatten) {
+        this.flatten = flatten;
+        return this;
+    }
+
+    public boolean isFlatten() {
+        return flatten;
+    }
+
+    /**
+     * Parse values on first access. Lazy loading does not flatten.
+     */
+    public ParametersLoader lazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Read and write a binary snapshot at the given path, see {@link ParametersSnapshot}
+     */
+    public ParametersLoader snapshot(Path snapshot) {
+        this.snapshot = snapshot;
+        return this;
+    }
+
+    public Path getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Load the document at the given URL.
+     * A URL that ends with .json is read as JSON, everything else as YAML.
+     *
+     * @return immutable parameters
+     */
+    public Parameters load(URL url) throws IOException {
+        AssertArg.notNull(url, "Null url");
+        boolean json = url.getPath().endsWith(".json");
+        if (snapshot != null) {
+            Parameters params = loadWithSnapshot(url, json);
+            LOG.debug("Loaded {} entries ({} bytes) in {}ms from {}", getEntryCount(), getBytesParsed(), getLoadTime(TimeUnit.MILLISECONDS), url);
+            return params;
+        }
+        try (InputStream ins = url.openStream()) {
+            Parameters params = load(ins, json);
+            LOG.debug("Loaded {} entries ({} bytes) in {}ms from {}", getEntryCount(), getBytesParsed(), getLoadTime(TimeUnit.MILLISECONDS), url);
+            return params;
+        }
+    }
+
+    /**
+     * Load a YAML or JSON document from the given stream.
+     *
+     * @return immutable parameters
+     */
+    public synchronized Parameters load(InputStream ins, boolean json) throws IOException {
+        AssertArg.notNull(ins, "Null input stream");
+        return load(ins, json, lazy);
+    }
+
+    private Parameters load(InputStream ins, boolean json, boolean lazy) throws IOException {
+        long start = System.nanoTime();
+        CountingInputStream counting = new CountingInputStream(ins);
+        Map<String, Object> values = new LinkedHashMap<>();
+        JsonFactory factory = json ? jsonFactory : yamlFactory;
+        lazyMap = null;
+
+        if (lazy && !flatten) {
+            byte[] bytes = StreamUtils.toBytes(counting);
+            Map<String, Object> index = indexDocument(factory, bytes, json);
+            if (index != null) {
+                lazyMap = new LazyValueMap(index, (key, location) -> resolveValue(factory, bytes, (int[]) location));
+                bytesParsed = counting.count;
+                loadTime = System.nanoTime() - start;
+                entryCount = index.size();
+                return Parameters.wrapImmutable(lazyMap);
+            }
+            counting = new CountingInputStream(new ByteArrayInputStream(bytes));
+        }
+
+        try (JsonParser parser = factory.createParser(counting)) {
+            JsonToken token = parser.nextToken();
+            if (token != null) {
+                AssertState.isTrue(token == JsonToken.START_OBJECT, "Expected an object, but got: " + token);
+                readObject(parser, values, flatten ? "" : null, true);
+            }
+        }
+
+        bytesParsed = counting.count;
+        loadTime = System.nanoTime() - start;
+        entryCount = values.size();
+
+        return Parameters.wrapImmutable(values);
+    }
+
+    private synchronized Parameters loadWithSnapshot(URL url, boolean json) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes;
+        try (InputStream ins = url.openStream()) {
+            bytes = StreamUtils.toBytes(ins);
+        }
+
+        // The checksum covers the options that change the content
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        crc.update(flatten ? 1 : 0);
+        long checksum = crc.getValue();
+
+        try {
+            LazyValueMap values = ParametersSnapshot.readValues(snapshot, checksum);
+            if (values != null) {
+                lazyMap = values;
+                bytesParsed = Files.size(snapshot);
+                loadTime = System.nanoTime() - start;
+                entryCount = values.getIndexedCount();
+                LOG.debug("Using snapshot {}", snapshot);
+                return Parameters.wrapImmutable(values);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Cannot read snapshot: " + snapshot, ex);
+        }
+
+        // All values are needed to write the snapshot
+        Parameters params = load(new ByteArrayInputStream(bytes), json, false);
+        loadTime = System.nanoTime() - start;
+
+        try {
+            ParametersSnapshot.write(params, checksum, snapshot);
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Cannot write snapshot: " + snapshot, ex);
+        }
+        return params;
+    }
+
+    public synchronized long getBytesParsed() {
+        return bytesParsed;
+    }
+
+    public synchronized long getLoadTime(TimeUnit unit) {
+        return unit.convert(loadTime, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * The number of entries that were parsed so far. 
+     * Without lazy loading, this is the entry count.
+     */
+    public synchronized int getResolvedCount() {
+        return lazyMap != null ? lazyMap.getResolvedCount() : entryCount;
+    }
+
+    /**
+     * Maps the top-level keys to the location of their values in the source.
+     * A location is {start byte offset, end byte offset, column}.
+     *
+     * @return the index or null when the document cannot be loaded lazily
+     */
+    private Map<String, Object> indexDocument(JsonFactory factory, byte[] bytes, boolean json) throws IOException {
+
+        // YAML flow values need their context
+        if (!json && firstNonWhitespace(bytes) == '{')
+            return null;
+
+        // YAML locations are code point offsets, which we map to UTF-8 byte offsets
+        Utf8Cursor cursor = !json ? new Utf8Cursor(bytes) : null;
+        if (cursor != null && !cursor.isPlainUtf8())
+            return null;
+
+        Map<String, Object> index = new LinkedHashMap<>();
+        try (JsonParser parser = factory.createParser(bytes)) {
+            JsonToken token = parser.nextToken();
+            if (token == null)
+                return index;
+
+            AssertState.isTrue(token == JsonToken.START_OBJECT, "Expected an object, but got: " + token);
+
+            int[] prev = null;
+            token = parser.nextToken();
+            while (token == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                int keyOffset = byteOffset(parser.getTokenLocation(), cursor);
+                if (keyOffset < 0) return null;
+                if (prev != null) prev[1] = valueEnd(bytes, keyOffset, json);
+
+                token = parser.nextToken();
+                JsonLocation loc = parser.getTokenLocation();
+                if (token != JsonToken.VALUE_NULL) {
+                    int valueOffset = byteOffset(loc, cursor);
+                    if (valueOffset < 0) return null;
+                    prev = new int[] { valueOffset, bytes.length, loc.getColumnNr() };
+                    index.put(key, prev);
+                } else {
+                    prev = null;
+                }
+                parser.skipChildren();
+                token = parser.nextToken();
+            }
+            if (prev != null && token == JsonToken.END_OBJECT && json) {
+                prev[1] = byteOffset(parser.getTokenLocation(), cursor);
+            }
+        }
+        return index;
+    }
+
+    private static int byteOffset(JsonLocation loc, Utf8Cursor cursor) {
+        return cursor != null ? cursor.advanceTo(loc.getCharOffset()) : (int) loc.getByteOffset();
+    }
+
+    private static int firstNonWhitespace(byte[] bytes) {
+        for (byte b : bytes) {
+            if (!isWhitespace(b)) return b;
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * JSON values end before the comma that separates them from the next key
+     */
+    private static int valueEnd(byte[] bytes, int nextOffset, boolean json) {
+        int end = nextOffset;
+        if (json) {
+            while (end > 0 && isWhitespace(bytes[end - 1])) end--;
+            if (end > 0 && bytes[end - 1] == ',') end--;
+        }
+        return end;
+    }
+
+    private Object resolveValue(JsonFactory factory, byte[] bytes, int[] location) {
+        
+        // Indent the value to its column, so that YAML block values parse as in the document
+        int indent = Math.max(0, location[2] - 1);
+        byte[] buffer = new byte[indent + location[1] - location[0]];
+        Arrays.fill(buffer, 0, indent, (byte) ' ');
+        System.arraycopy(bytes, location[0], buffer, indent, location[1] - location[0]);
+        try (JsonParser parser = factory.createParser(buffer)) {
+            return readValue(parser, parser.nextToken());
+        } catch (IOException ex) {
+            throw CheckedExceptionWrapper.create(ex);
+        }
+    }
+
+    /**
+     * Reads the fields of the current object into the given map.
+     * With a non-null prefix, nested objects are flattened into the same map.
+     */
+    private void readObject(JsonParser parser, Map<String, Object> target, String prefix, boolean skipNulls) throws IOException {
+        JsonToken token = parser.nextToken();
+        while (token == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            String key = prefix != null ? prefix + name : name;
+            token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT && prefix != null) {
+                readObject(parser, target, key + ".", skipNulls);
+            } else {
+                Object value = readValue(parser, token);
+                if (value != null || !skipNulls) {
+                    target.put(key, value);
+                }
+            }
+            token = parser.nextToken();
+        }
+    }
+
+    private Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                readObject(parser, map, null, false);
+                return map;
+            case START_ARRAY:
+                List<Object> list = new ArrayList<>();
+                JsonToken next = parser.nextToken();
+                while (next != JsonToken.END_ARRAY) {
+                    list.add(readValue(parser, next));
+                    next = parser.nextToken();
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return parser.getText();
+        }
+    }
+
+    /**
+     * Walks forward over UTF-8 encoded bytes, counting code points
+     */
+    private static class Utf8Cursor {
+
+        final byte[] bytes;
+        int offset;
+        long codePoints;
+
+        Utf8Cursor(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        // No byte order mark and no UTF-16/32 encoding
+        boolean isPlainUtf8() {
+            if (bytes.length < 2) return true;
+            int b0 = bytes[0] & 0xFF;
+            return b0 != 0xEF && b0 != 0xFE && b0 != 0xFF && b0 != 0 && bytes[1] != 0;
+        }
+
+        int advanceTo(long target) {
+            if (target < codePoints) return -1;
+            while (codePoints < target && offset < bytes.length) {
+                int b = bytes[offset] & 0xFF;
+                offset += b < 0x80 ? 1 : b < 0xE0 ? 2 : b < 0xF0 ? 3 : 4;
+                codePoints++;
+            }
+            return Math.min(offset, bytes.length);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package io.nessus.common;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single pass parser for the params spec that {@link Parameters#toString()} produces.
+ *
+ *  {aaa=50, bbb=[x, y, [z]], ccc="a,b", ddd=a\,b}
+ *
+ * Values are strings or lists of values. Commas, brackets and braces can be
+ * part of a value when it is quoted or when they are escaped with a backslash.
+ * A quote only has a meaning at the start of a value, within the quoted value
+ * it can be escaped with a backslash. Other quotes and backslashes are taken
+ * literally, so that values like 5" or \\host\share parse as before.
+ * A trailing comma in a map or list is ignored.
+ */
+final class ParametersParser {
+
+    private static final int EOF = -1;
+
+    private final Reader reader;
+    private final char[] buffer = new char[4096];
+    private final StringBuilder token = new StringBuilder();
+    private int limit;
+    private int pos;
+    private long offset;
+
+    ParametersParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    static Parameters parse(String spec) {
+        try {
+            return new ParametersParser(new StringReader(spec)).parse();
+        } catch (IOException ex) {
+            throw CheckedExceptionWrapper.create(ex);
+        }
+    }
+
+    Parameters parse() throws IOException {
+        Parameters params = new Parameters();
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            next();
+        } else {
+            int ch;
+            do {
+                String key = readKey();
+                Object value = readValue();
+                params.put(key, value);
+                ch = next();
+                skipWhitespace();
+            } while (ch == ',' && peek() != '}');
+            if (ch == ',') ch = next();
+            if (ch != '}')
+                throw invalidSpec("Expected '}'");
+        }
+        skipWhitespace();
+        if (peek() != EOF)
+            throw invalidSpec("Unexpected content after '}'");
+        return params;
+    }
+
+    private String readKey() throws IOException {
+        skipWhitespace();
+        token.setLength(0);
+        int ch = next();
+        while (ch != '=') {
+            if (ch == EOF || ch == ',' || ch == '}')
+                throw invalidSpec("Expected '='");
+            token.append((char) ch);
+            ch = next();
+        }
+        String key = token.toString().trim();
+        if (key.isEmpty())
+            throw invalidSpec("Empty key");
+        return key;
+    }
+
+    private Object readValue() throws IOException {
+        skipWhitespace();
+        return peek() == '[' ? readList() : readScalar();
+    }
+
+    private List<Object> readList() throws IOException {
+        expect('[');
+        List<Object> result = new ArrayList<>();
+        skipWhitespace();
+        if (peek() == ']') {
+            next();
+            return result;
+        }
+        int ch;
+        do {
+            result.add(readValue());
+            ch = next();
+            skipWhitespace();
+        } while (ch == ',' && peek() != ']');
+        if (ch == ',') ch = next();
+        if (ch != ']')
+            throw invalidSpec("Expected ']'");
+        return result;
+    }
+
+    /**
+     * Reads a scalar up to the next unquoted and unescaped
+     * delimiter, which is left in the input.
+     */
+    private String readScalar() throws IOException {
+        token.setLength(0);
+
+        // Length up to the last char that must not be trimmed
+        int significant = 0;
+        boolean quoted = peek() == '"';
+        if (quoted) next();
+
+        while (true) {
+            int ch = peek();
+            if (ch == EOF) {
+                if (quoted)
+                    throw invalidSpec("Unterminated quote");
+                break;
+            }
+            if (!quoted && (ch == ',' || ch == ']' || ch == '}'))
+                break;
+
+            next();
+            if (ch == '\\' && isEscapable(peek(), quoted)) {
+                token.append((char) next());
+                significant = token.length();
+            } else if (quoted && ch == '"') {
+                quoted = false;
+                significant = token.length();
+            } else if (!quoted && Character.isWhitespace(ch)) {
+                if (token.length() > 0)
+                    token.append((char) ch);
+            } else {
+                token.append((char) ch);
+                significant = token.length();
+            }
+        }
+
+        token.setLength(significant);
+        return token.toString();
+    }
+
+    private static boolean isEscapable(int ch, boolean quoted) {
+        return ch == ',' || ch == '[' || ch == ']' || ch == '}' || (quoted && ch == '"');
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (Character.isWhitespace(peek())) {
+            next();
+        }
+    }
+
+    private void expect(char exp) throws IOException {
+        if (next() != exp)
+            throw invalidSpec("Expected '" + exp + "'");
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill())
+            return EOF;
+        return buffer[pos];
+    }
+
+    private int next() throws IOException {
+        if (pos == limit && !fill())
+            return EOF;
+        return buffer[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        limit = reader.read(buffer, 0, buffer.length);
+        pos = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private IllegalArgumentException invalidSpec(String message) {
+        return new IllegalArgumentException("Invalid params spec at " + (offset + pos) + ": " + message);
+    }
+}
@@ -0,0 +1,259 @@
+package io.nessus.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A compact binary form of {@link Parameters}.
+ *
+ * The snapshot carries the checksum of the document it was created from.
+ * Reading maps the file into memory and decodes a value when it is first
+ * requested.
+ *
+ *  magic, version, checksum
+ *  key table: count, (length, utf8)*
+ *  entries: count, (key index, value offset)*
+ *  values: (tag, data)*
+ */
+public final class ParametersSnapshot {
+
+    private static final int MAGIC = 0x4E505331;
+    private static final byte VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_TRUE = 5;
+    private static final byte TAG_FALSE = 6;
+    private static final byte TAG_BIGDECIMAL = 7;
+    private static final byte TAG_BIGINTEGER = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_MAP = 10;
+
+    // Hide ctor
+    private ParametersSnapshot() {
+    }
+
+    /**
+     * Writes the parameters to the given path, replacing an existing snapshot atomically.
+     * Supported values are strings, numbers, booleans and lists or maps thereof.
+     */
+    public static void write(Parameters params, long checksum, Path path) throws IOException {
+        AssertArg.notNull(params, "Null params");
+        AssertArg.notNull(path, "Null path");
+
+        Map<String, Integer> keyTable = new LinkedHashMap<>();
+        Map<String, Object> map = params.toMap();
+
+        // Values are written first to learn their offsets
+        ByteArrayOutputStream valbytes = new ByteArrayOutputStream();
+        DataOutputStream valout = new DataOutputStream(valbytes);
+        List<int[]> entries = new ArrayList<>();
+        for (Entry<String, Object> en : map.entrySet()) {
+            int keyIdx = internKey(keyTable, en.getKey());
+            entries.add(new int[] { keyIdx, valout.size() });
+            writeValue(valout, keyTable, en.getValue());
+        }
+        valout.flush();
+
+        ByteArrayOutputStream headbytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(headbytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(checksum);
+        out.writeInt(keyTable.size());
+        for (String key : keyTable.keySet()) {
+            writeString(out, key);
+        }
+        out.writeInt(entries.size());
+        int valuesStart = out.size() + entries.size() * 8;
+        for (int[] en : entries) {
+            out.writeInt(en[0]);
+            out.writeInt(valuesStart + en[1]);
+        }
+        valbytes.writeTo(out);
+        out.flush();
+
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        Files.write(tmpPath, headbytes.toByteArray());
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot at the given path, if it was created for the given checksum.
+     *
+     * @return immutable parameters or null if there is no matching snapshot
+     */
+    public static Parameters read(Path path, long checksum) throws IOException {
+        LazyValueMap values = readValues(path, checksum);
+        return values != null ? Parameters.wrapImmutable(values) : null;
+    }
+
+    static LazyValueMap readValues(Path path, long checksum) throws IOException {
+        AssertArg.notNull(path, "Null path");
+
+        if (!Files.isRegularFile(path))
+            return null;
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.remaining() < 17 || buffer.getInt() != MAGIC || buffer.get() != VERSION || buffer.getLong() != checksum)
+            return null;
+
+        String[] keyTable = new String[buffer.getInt()];
+        for (int i = 0; i < keyTable.length; i++) {
+            keyTable[i] = readString(buffer).intern();
+        }
+
+        int count = buffer.getInt();
+        Map<String, Object> index = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = keyTable[buffer.getInt()];
+            index.put(key, buffer.getInt());
+        }
+
+        ByteBuffer source = buffer;
+        return new LazyValueMap(index, (key, offset) -> {
+            ByteBuffer aux = source.duplicate();
+            aux.position((Integer) offset);
+            return readValue(aux, keyTable);
+        });
+    }
+
+    private static int internKey(Map<String, Integer> keyTable, String key) {
+        Integer idx = keyTable.get(key);
+        if (idx == null) {
+            idx = keyTable.size();
+            keyTable.put(key, idx);
+        }
+        return idx;
+    }
+
+    private static void writeValue(DataOutputStream out, Map<String, Integer> keyTable, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TAG_INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TAG_BIGDECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(TAG_BIGINTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(TAG_LIST);
+            out.writeInt(list.size());
+            for (Object el : list) {
+                writeValue(out, keyTable, el);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(TAG_MAP);
+            out.writeInt(map.size());
+            for (Entry<?, ?> en : map.entrySet()) {
+                out.writeInt(internKey(keyTable, String.valueOf(en.getKey())));
+                writeValue(out, keyTable, en.getValue());
+            }
+        } else {
+            throw new IllegalStateException("Unsupported snapshot value: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer, String[] keyTable) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(buffer);
+            case TAG_INT:
+                return buffer.getInt();
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BIGDECIMAL:
+                return new BigDecimal(readString(buffer));
+            case TAG_BIGINTEGER:
+                return new BigInteger(readString(buffer));
+            case TAG_LIST: {
+                int size = buffer.getInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(buffer, keyTable));
+                }
+                return list;
+            }
+            case TAG_MAP: {
+                int size = buffer.getInt();
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String key = keyTable[buffer.getInt()];
+                    map.put(key, readValue(buffer, keyTable));
+                }
+                return map;
+            }
+            default:
+                throw new IllegalStateException("Invalid snapshot tag: " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String result;
+        if (buffer.hasArray()) {
+            result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.duplicate().get(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+}
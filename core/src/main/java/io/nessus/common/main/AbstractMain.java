@@ -5,8 +5,10 @@ import static io.nessus.common.BasicConfig.redactValue;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.jar.Attributes;
@@ -15,6 +17,7 @@ import java.util.jar.Manifest;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
+import org.slf4j.event.Level;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -64,24 +67,27 @@ public abstract class AbstractMain<T extends Config, O extends AbstractOptions>
 			throw CheckedExceptionWrapper.create(ex);
 		}
 		
+		Map<String, Object> values = new LinkedHashMap<>();
 		for (Entry<String, String> en : optsmap.entrySet()) {
 			String key = en.getKey();
 			String value = en.getValue();
 			if (value != null) {
 				logDebug("Opt {}: {}", key, redactValue(key, value));
-				config.putParameter(en.getKey(), value);
+				values.put(key, value);
 			}
 		}
+		config.putParameters(values);
 		
         // Log the initial configuration
+        // Values are only resolved for DEBUG, they may be loaded lazily
 		
-        getConfig().getParameters().toMap().entrySet().stream()
-            .sorted((e1, e2) -> e1.getKey().compareTo(e2.getKey()))
-            .forEach(en -> { 
-            	String key = en.getKey();
-            	Object value = en.getValue();
-				logInfo("{}: {}", key, redactValue(key, value)); 
-            });
+        List<String> names = new ArrayList<>(config.getParameterNames());
+        Collections.sort(names);
+        logInfo("Parameters: {}", names);
+        if (isEnabled(Level.DEBUG)) {
+            Map<String, Object> params = config.getSnapshot().toMap();
+            names.forEach(key -> logDebug("{}: {}", key, redactValue(key, params.get(key))));
+        }
     }
 
 	protected void startInternal(String... args) throws Exception {
@@ -0,0 +1,248 @@
+package io.nessus.common.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.Config;
+import io.nessus.common.utils.RingBuffer;
+
+/**
+ * A LogService that hands log events to a background thread.
+ *
+ * Events are queued in a bounded {@link RingBuffer} and written
+ * in batches through a delegate, by default the {@link BasicLogService}.
+ * The {@link LogSink} of the calling thread is captured with the event.
+ * Arguments are formatted on the background thread, so they should not be
+ * mutated after the call.
+ *
+ * When the queue is full, the event is either dropped or the caller waits
+ * for space, depending on the {@link OverflowPolicy}.
+ */
+public class AsyncLogService implements LogService {
+
+    static final Logger LOG = LoggerFactory.getLogger(AsyncLogService.class);
+
+    public enum OverflowPolicy {
+        DROP, BLOCK
+    }
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final LogService delegate;
+    private final RingBuffer<LogEvent> queue;
+    private final OverflowPolicy policy;
+    private final Object drainLock = new Object();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long processed;
+    private volatile boolean idle;
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    public AsyncLogService() {
+        this(new BasicLogService(), 8192, OverflowPolicy.BLOCK);
+    }
+
+    public AsyncLogService(LogService delegate, int capacity, OverflowPolicy policy) {
+        AssertArg.notNull(delegate, "Null delegate");
+        AssertArg.notNull(policy, "Null policy");
+        this.delegate = delegate;
+        this.queue = new RingBuffer<>(capacity);
+        this.policy = policy;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Class<LogService> getType() {
+        return LogService.class;
+    }
+
+    @Override
+    public synchronized void init(Config config) {
+        delegate.init(config);
+        start();
+    }
+
+    @Override
+    public void close() {
+        Thread aux;
+        synchronized (this) {
+            aux = thread;
+            running = false;
+            thread = null;
+        }
+        if (aux != null) {
+            LockSupport.unpark(aux);
+            try {
+                aux.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Write what is left on the calling thread
+        drain(Integer.MAX_VALUE);
+        delegate.close();
+    }
+
+    /**
+     * The number of events that wait to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * The number of events that were dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until all events that were queued before this call are written.
+     *
+     * @return false if the timeout elapsed
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        long target = enqueued.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (processed < target) {
+            if (System.nanoTime() > deadline)
+                return false;
+            wakeup();
+            LockSupport.parkNanos(100_000);
+        }
+        return true;
+    }
+
+    @Override
+    public void log(Logger log, Level level, Throwable th, String msg, Object... args) {
+        enqueue(log, level, th, msg, args);
+    }
+
+    @Override
+    public void logError(Logger log, Throwable th, String msg) {
+        enqueue(log, Level.ERROR, th, msg);
+    }
+
+    @Override
+    public void logError(Logger log, String msg, Object... args) {
+        enqueue(log, Level.ERROR, null, msg, args);
+    }
+
+    @Override
+    public void logWarn(Logger log, String msg, Object... args) {
+        enqueue(log, Level.WARN, null, msg, args);
+    }
+
+    @Override
+    public void logInfo(Logger log, String msg, Object... args) {
+        enqueue(log, Level.INFO, null, msg, args);
+    }
+
+    @Override
+    public void logDebug(Logger log, String msg, Object... args) {
+        if (log.isDebugEnabled())
+            enqueue(log, Level.DEBUG, null, msg, args);
+    }
+
+    @Override
+    public void logTrace(Logger log, String msg, Object... args) {
+        if (log.isTraceEnabled())
+            enqueue(log, Level.TRACE, null, msg, args);
+    }
+
+    private void enqueue(Logger log, Level level, Throwable th, String msg, Object... args) {
+        if (!running) {
+            delegate.log(log, level, th, msg, args);
+            return;
+        }
+
+        LogEvent event = new LogEvent(log, level, th, msg, args, LogSink.current());
+        while (!queue.offer(event)) {
+            if (policy == OverflowPolicy.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (!running) {
+                delegate.log(log, level, th, msg, args);
+                return;
+            }
+            wakeup();
+            LockSupport.parkNanos(50_000);
+        }
+        enqueued.incrementAndGet();
+        if (!running) drain(Integer.MAX_VALUE);
+        else if (idle) wakeup();
+    }
+
+    private synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this::run, "AsyncLogService");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void wakeup() {
+        Thread aux = thread;
+        if (aux != null) LockSupport.unpark(aux);
+    }
+
+    private void run() {
+        while (running) {
+            if (drain(BATCH_SIZE) == 0) {
+                idle = true;
+                if (queue.isEmpty() && running)
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                idle = false;
+            }
+        }
+    }
+
+    private int drain(int max) {
+        synchronized (drainLock) {
+            int count = queue.drain(this::write, max);
+            processed += count;
+            return count;
+        }
+    }
+
+    private void write(LogEvent ev) {
+        LogSink.Scope scope = LogSink.enter(ev.sink);
+        try {
+            delegate.log(ev.log, ev.level, ev.th, ev.msg, ev.args);
+        } catch (RuntimeException ex) {
+            LOG.error("Cannot write log event", ex);
+        } finally {
+            scope.close();
+        }
+    }
+
+    private static class LogEvent {
+
+        final Logger log;
+        final Level level;
+        final Throwable th;
+        final String msg;
+        final Object[] args;
+        final LogSink sink;
+
+        LogEvent(Logger log, Level level, Throwable th, String msg, Object[] args, LogSink sink) {
+            this.log = log;
+            this.level = level;
+            this.th = th;
+            this.msg = msg;
+            this.args = args;
+            this.sink = sink;
+        }
+    }
+}
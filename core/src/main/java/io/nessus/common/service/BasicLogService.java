@@ -1,12 +1,26 @@
 package io.nessus.common.service;
 
-import java.io.PrintStream;
-
 import org.slf4j.Logger;
 import org.slf4j.event.Level;
 
+import io.nessus.common.AssertArg;
+
 public class BasicLogService implements LogService {
     
+    private static final int MAX_BUFFER_CAPACITY = 4096;
+    private static final ThreadLocal<StringBuilder> formatBuffer = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    
+    private final LogMetrics metrics;
+    
+    public BasicLogService() {
+        this(LogMetrics.getDefault());
+    }
+    
+    public BasicLogService(LogMetrics metrics) {
+        AssertArg.notNull(metrics, "Null metrics");
+        this.metrics = metrics;
+    }
+    
 	@Override
 	@SuppressWarnings("unchecked")
 	public Class<LogService> getType() {
@@ -36,53 +50,102 @@ public class BasicLogService implements LogService {
     
     @Override
 	public void logError(Logger log, Throwable th, String msg) {
+        long start = System.nanoTime();
         logToPrintStream(th, msg);
     	log.error(msg, th);
+    	record(log, Level.ERROR, start);
     }
     
     @Override
 	public void logError(Logger log, String msg, Object... args) {
+        long start = System.nanoTime();
         logToPrintStream(null, msg, args);
-    	log.error(msg, args);
+        log.error(msg, args);
+        record(log, Level.ERROR, start);
     }
     
     @Override
 	public void logWarn(Logger log, String msg, Object... args) {
+        long start = System.nanoTime();
         logToPrintStream(null, msg, args);
         log.warn(msg, args);
+        record(log, Level.WARN, start);
     }
     
     @Override
 	public void logInfo(Logger log, String msg, Object... args) {
+        long start = System.nanoTime();
         logToPrintStream(null, msg, args);
         log.info(msg, args);
+        record(log, Level.INFO, start);
     }
 
     @Override
 	public void logDebug(Logger log, String msg, Object... args) {
-        log.debug(msg, args);
+        if (log.isDebugEnabled()) {
+            long start = System.nanoTime();
+            log.debug(msg, args);
+            record(log, Level.DEBUG, start);
+        }
     }
     
     @Override
 	public void logTrace(Logger log, String msg, Object... args) {
-        log.trace(msg, args);
+        if (log.isTraceEnabled()) {
+            long start = System.nanoTime();
+            log.trace(msg, args);
+            record(log, Level.TRACE, start);
+        }
     }
     
     public static String format(String msg, Object... args) {
-    	if (args.length > 0) {
-            msg = msg.replace("%", "%%");
-            msg = msg.replace("{}", "%s");
-            msg = String.format(msg, args);
-    	}
-        return msg;
+    	if (args == null || args.length == 0 || msg == null || msg.indexOf("{}") < 0)
+    	    return msg;
+    	
+    	StringBuilder sb = formatBuffer.get();
+    	sb.setLength(0);
+    	formatTo(sb, msg, args);
+    	String result = sb.toString();
+    	
+    	// Do not hold on to the buffer of a huge message
+    	if (sb.capacity() > MAX_BUFFER_CAPACITY) 
+    	    formatBuffer.set(new StringBuilder(256));
+    	
+        return result;
+    }
+    
+    /**
+     * Appends the message with each {} replaced by the next argument.
+     * Extra arguments are ignored, placeholders without an argument are kept.
+     */
+    public static StringBuilder formatTo(StringBuilder sb, String msg, Object... args) {
+        int start = 0;
+        int argIdx = 0;
+        int idx;
+        int argCount = args != null ? args.length : 0;
+        while (argIdx < argCount && (idx = msg.indexOf("{}", start)) >= 0) {
+            sb.append(msg, start, idx);
+            sb.append(args[argIdx++]);
+            start = idx + 2;
+        }
+        sb.append(msg, start, msg.length());
+        return sb;
+    }
+    
+    private void record(Logger log, Level level, long start) {
+        metrics.recordWrite(System.nanoTime() - start);
+        metrics.recordEvent(log, level);
     }
     
     private void logToPrintStream(Throwable th, String msg, Object... args) {
-        PrintStream out = LogService.getPrintStream();
-        if (out != null) {
-            out.println(format(msg, args));
+        LogSink sink = LogSink.current();
+        if (sink != null) {
+            long start = System.nanoTime();
+            String line = format(msg, args);
+            metrics.recordFormat(System.nanoTime() - start);
+            sink.println(line);
             if (th != null) { 
-                th.printStackTrace(out);
+                sink.printStackTrace(th);
             }
         }
     }
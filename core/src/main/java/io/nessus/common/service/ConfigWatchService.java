@@ -0,0 +1,129 @@
+package io.nessus.common.service;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.AssertState;
+import io.nessus.common.BasicConfig;
+import io.nessus.common.CheckedExceptionWrapper;
+import io.nessus.common.Config;
+
+/**
+ * Watches the file a {@link BasicConfig} was read from
+ * and reloads the config when that file changes.
+ *
+ *  BasicConfig config = new BasicConfig(cfgurl);
+ *  config.addService(new ConfigWatchService());
+ *  config.initServices();
+ */
+public class ConfigWatchService implements Service {
+
+    static final Logger LOG = LoggerFactory.getLogger(ConfigWatchService.class);
+
+    // Quiet period that lets a writer finish before the file is read
+    private static final long SETTLE_MILLIS = 100;
+
+    private WatchService watcher;
+    private Thread thread;
+
+    @Override
+    public synchronized void init(Config config) {
+        AssertArg.isTrue(config instanceof BasicConfig, "BasicConfig expected: " + config);
+
+        if (thread != null)
+            return;
+
+        BasicConfig basicConfig = (BasicConfig) config;
+        Path path = toPath(basicConfig.getSource());
+        Path dir = path.toAbsolutePath().getParent();
+        Path fileName = path.getFileName();
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            throw CheckedExceptionWrapper.create(ex);
+        }
+
+        WatchService auxWatcher = watcher;
+        thread = new Thread(() -> watch(auxWatcher, basicConfig, fileName), "ConfigWatch-" + fileName);
+        thread.setDaemon(true);
+        thread.start();
+
+        LOG.debug("Watching {}", path);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+            watcher = null;
+            thread = null;
+        }
+    }
+
+    private void watch(WatchService watcher, BasicConfig config, Path fileName) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                break;
+            }
+
+            boolean changed = false;
+            boolean valid = true;
+            try {
+                while (key != null && valid) {
+                    for (WatchEvent<?> ev : key.pollEvents()) {
+                        changed |= fileName.equals(ev.context());
+                    }
+                    valid = key.reset();
+                    if (valid) key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                valid = false;
+            }
+
+            // Apply the changes seen so far, also when the watch ends
+            if (changed) {
+                try {
+                    config.reload();
+                } catch (IOException | RuntimeException ex) {
+                    LOG.warn("Cannot reload config: " + config.getSource(), ex);
+                }
+            }
+
+            if (!valid)
+                break;
+        }
+    }
+
+    private static Path toPath(URL source) {
+        AssertState.notNull(source, "Config has no source");
+        AssertState.isEqual("file", source.getProtocol(), "File source expected: " + source);
+        try {
+            return Paths.get(source.toURI());
+        } catch (URISyntaxException ex) {
+            throw CheckedExceptionWrapper.create(ex);
+        }
+    }
+}
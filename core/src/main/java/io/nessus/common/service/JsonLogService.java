@@ -0,0 +1,208 @@
+package io.nessus.common.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.event.Level;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.CheckedExceptionWrapper;
+
+/**
+ * A LogService that writes one JSON object per line.
+ *
+ *  {"timestamp":1600000000000,"level":"INFO","logger":"a.b.C","thread":"main",
+ *   "template":"Hello {}","args":["world"],"exception":{...}}
+ *
+ * Each thread writes its events with its own generator into a reusable buffer.
+ * Only the complete line is written to the output stream.
+ * Events for levels that are disabled for the logger are not written.
+ */
+public class JsonLogService implements LogService {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    // Buffers that grew beyond this size are not reused
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CAUSE_DEPTH = 10;
+
+    private final OutputStream out;
+    private final LogMetrics metrics;
+    private final ThreadLocal<EventWriter> writers = ThreadLocal.withInitial(EventWriter::new);
+
+    public JsonLogService() {
+        this(System.out);
+    }
+
+    public JsonLogService(OutputStream out) {
+        this(out, LogMetrics.getDefault());
+    }
+
+    public JsonLogService(OutputStream out, LogMetrics metrics) {
+        AssertArg.notNull(out, "Null output stream");
+        AssertArg.notNull(metrics, "Null metrics");
+        this.out = out;
+        this.metrics = metrics;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Class<LogService> getType() {
+        return LogService.class;
+    }
+
+    @Override
+    public void close() {
+        synchronized (out) {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void log(Logger log, Level level, Throwable th, String msg, Object... args) {
+        if (!isEnabled(log, level))
+            return;
+
+        EventWriter writer = writers.get();
+        boolean complete = false;
+        try {
+            long start = System.nanoTime();
+            writer.write(log, level, th, msg, args);
+            complete = true;
+            long written = System.nanoTime();
+            synchronized (out) {
+                writer.buffer.writeTo(out);
+            }
+            metrics.recordFormat(written - start);
+            metrics.recordWrite(System.nanoTime() - start);
+            metrics.recordEvent(log, level);
+        } catch (IOException ex) {
+            throw CheckedExceptionWrapper.create(ex);
+        } finally {
+            writer.reset(complete);
+        }
+    }
+
+    @Override
+    public void logError(Logger log, Throwable th, String msg) {
+        log(log, Level.ERROR, th, msg);
+    }
+
+    @Override
+    public void logError(Logger log, String msg, Object... args) {
+        log(log, Level.ERROR, null, msg, args);
+    }
+
+    @Override
+    public void logWarn(Logger log, String msg, Object... args) {
+        log(log, Level.WARN, null, msg, args);
+    }
+
+    @Override
+    public void logInfo(Logger log, String msg, Object... args) {
+        log(log, Level.INFO, null, msg, args);
+    }
+
+    @Override
+    public void logDebug(Logger log, String msg, Object... args) {
+        log(log, Level.DEBUG, null, msg, args);
+    }
+
+    @Override
+    public void logTrace(Logger log, String msg, Object... args) {
+        log(log, Level.TRACE, null, msg, args);
+    }
+
+    private static boolean isEnabled(Logger log, Level level) {
+        switch (level) {
+            case ERROR: return log.isErrorEnabled();
+            case WARN: return log.isWarnEnabled();
+            case INFO: return log.isInfoEnabled();
+            case DEBUG: return log.isDebugEnabled();
+            default: return log.isTraceEnabled();
+        }
+    }
+
+    private class EventWriter {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+        JsonGenerator gen = createGenerator(buffer);
+
+        void write(Logger log, Level level, Throwable th, String msg, Object[] args) throws IOException {
+            gen.writeStartObject();
+            gen.writeNumberField("timestamp", System.currentTimeMillis());
+            gen.writeStringField("level", level.name());
+            gen.writeStringField("logger", log.getName());
+            gen.writeStringField("thread", Thread.currentThread().getName());
+            gen.writeStringField("template", msg);
+            if (args != null && args.length > 0) {
+                gen.writeArrayFieldStart("args");
+                for (Object arg : args) {
+                    writeValue(arg);
+                }
+                gen.writeEndArray();
+            }
+            if (th != null) {
+                gen.writeFieldName("exception");
+                writeThrowable(th, 0);
+            }
+            gen.writeEndObject();
+            gen.writeRaw('\n');
+            gen.flush();
+        }
+
+        void reset(boolean complete) {
+            // The generator of an incomplete event is in the middle of an object
+            if (!complete || buffer.size() > MAX_BUFFER_SIZE) {
+                buffer = new ByteArrayOutputStream(512);
+                gen = createGenerator(buffer);
+            } else {
+                buffer.reset();
+            }
+        }
+
+        private void writeValue(Object arg) throws IOException {
+            if (arg == null) gen.writeNull();
+            else if (arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte) gen.writeNumber(((Number) arg).longValue());
+            else if (arg instanceof Double || arg instanceof Float) gen.writeNumber(((Number) arg).doubleValue());
+            else if (arg instanceof Boolean) gen.writeBoolean((Boolean) arg);
+            else gen.writeString(String.valueOf(arg));
+        }
+
+        private void writeThrowable(Throwable th, int depth) throws IOException {
+            gen.writeStartObject();
+            gen.writeStringField("class", th.getClass().getName());
+            gen.writeStringField("message", th.getMessage());
+            gen.writeArrayFieldStart("stack");
+            for (StackTraceElement el : th.getStackTrace()) {
+                gen.writeString(el.toString());
+            }
+            gen.writeEndArray();
+            if (th.getCause() != null && th.getCause() != th && depth < MAX_CAUSE_DEPTH) {
+                gen.writeFieldName("cause");
+                writeThrowable(th.getCause(), depth + 1);
+            }
+            gen.writeEndObject();
+        }
+
+        private JsonGenerator createGenerator(ByteArrayOutputStream target) {
+            try {
+                JsonGenerator result = jsonFactory.createGenerator(target, JsonEncoding.UTF8);
+                result.setRootValueSeparator(null);
+                return result;
+            } catch (IOException ex) {
+                throw CheckedExceptionWrapper.create(ex);
+            }
+        }
+    }
+}
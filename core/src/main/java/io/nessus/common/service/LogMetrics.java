@@ -0,0 +1,215 @@
+package io.nessus.common.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+/**
+ * Counts log events per level and logger, and measures the time
+ * it takes to format and write them.
+ *
+ * The default instance is registered with the platform MBean server
+ * as {@value #OBJECT_NAME}.
+ */
+public final class LogMetrics implements LogMetricsMXBean {
+
+    public static final String OBJECT_NAME = "io.nessus:type=LogMetrics";
+
+    static final Logger LOG = LoggerFactory.getLogger(LogMetrics.class);
+
+    private static final LogMetrics INSTANCE = createDefault();
+
+    private final LongAdder[] levelCounts = new LongAdder[Level.values().length];
+    private final Map<String, LongAdder> loggerCounts = new ConcurrentHashMap<>();
+    private final LatencyHistogram formatLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    public LogMetrics() {
+        for (int i = 0; i < levelCounts.length; i++) {
+            levelCounts[i] = new LongAdder();
+        }
+    }
+
+    public static LogMetrics getDefault() {
+        return INSTANCE;
+    }
+
+    private static LogMetrics createDefault() {
+        LogMetrics metrics = new LogMetrics();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName oname = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(oname))
+                server.registerMBean(metrics, oname);
+        } catch (Exception | LinkageError ex) {
+            LOG.debug("Cannot register " + OBJECT_NAME, ex);
+        }
+        return metrics;
+    }
+
+    public void recordEvent(Logger log, Level level) {
+        levelCounts[level.ordinal()].increment();
+        loggerCounts.computeIfAbsent(log.getName(), key -> new LongAdder()).increment();
+    }
+
+    public void recordFormat(long nanos) {
+        formatLatency.record(nanos);
+    }
+
+    /**
+     * The time to write an event, including the time to format it
+     */
+    public void recordWrite(long nanos) {
+        writeLatency.record(nanos);
+    }
+
+    public long getEventCount(Level level) {
+        return levelCounts[level.ordinal()].sum();
+    }
+
+    public long getEventCount(String logger) {
+        LongAdder count = loggerCounts.get(logger);
+        return count != null ? count.sum() : 0;
+    }
+
+    public LatencyHistogram getFormatLatency() {
+        return formatLatency;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    @Override
+    public Map<String, Long> getLevelCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Level level : Level.values()) {
+            result.put(level.name(), getEventCount(level));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLoggerCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        loggerCounts.forEach((key, count) -> result.put(key, count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getFormatCount() {
+        return formatLatency.getCount();
+    }
+
+    @Override
+    public double getFormatMeanNanos() {
+        return formatLatency.getMean();
+    }
+
+    @Override
+    public long getFormatP99Nanos() {
+        return formatLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getWriteCount() {
+        return writeLatency.getCount();
+    }
+
+    @Override
+    public double getWriteMeanNanos() {
+        return writeLatency.getMean();
+    }
+
+    @Override
+    public long getWriteP99Nanos() {
+        return writeLatency.getPercentile(99);
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder count : levelCounts) {
+            count.reset();
+        }
+        loggerCounts.clear();
+        formatLatency.reset();
+        writeLatency.reset();
+    }
+
+    /**
+     * A histogram of nanosecond latencies with power of two buckets.
+     * Bucket i counts values in [2^(i-1), 2^i).
+     */
+    public static final class LatencyHistogram {
+
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+
+        LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            count.increment();
+            total.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n > 0 ? (double) total.sum() / n : 0;
+        }
+
+        /**
+         * The upper bound of the bucket that contains the given percentile
+         */
+        public long getPercentile(double percentile) {
+            long[] counts = getBuckets();
+            long n = 0;
+            for (long c : counts) n += c;
+            if (n == 0)
+                return 0;
+            long rank = (long) Math.ceil(percentile / 100 * n);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return i < 63 ? 1L << i : Long.MAX_VALUE;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        public long[] getBuckets() {
+            long[] result = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                result[i] = buckets[i].sum();
+            }
+            return result;
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            total.reset();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package io.nessus.common.service;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link LogMetrics}
+ */
+public interface LogMetricsMXBean {
+
+    Map<String, Long> getLevelCounts();
+
+    Map<String, Long> getLoggerCounts();
+
+    long getFormatCount();
+
+    double getFormatMeanNanos();
+
+    long getFormatP99Nanos();
+
+    long getWriteCount();
+
+    double getWriteMeanNanos();
+
+    long getWriteP99Nanos();
+
+    void reset();
+}
@@ -7,16 +7,24 @@ import org.slf4j.event.Level;
 
 public interface LogService extends Service {
 
-    static final ThreadLocal<PrintStream> streamAssociation = new ThreadLocal<>();
-    
+    /**
+     * The PrintStream of the current {@link LogSink} or null
+     */
     public static PrintStream getPrintStream() {
-        return streamAssociation.get();
+        LogSink sink = LogSink.current();
+        return sink != null ? sink.getPrintStream() : null;
     }
     
+    /**
+     * Binds an unbuffered sink for the given stream to the current thread.
+     * A null stream removes the binding. Setting the returned stream again 
+     * restores the previous sink. Prefer {@link LogSink#open(PrintStream)}, 
+     * which also propagates to tasks.
+     * 
+     * @return the target of the previous sink
+     */
     public static PrintStream setPrintStream(PrintStream out) {
-        PrintStream prev = streamAssociation.get();
-        streamAssociation.set(out);
-        return prev;
+        return LogSink.setPrintStream(out);
     }
     
 	void log(Logger log, Level level, Throwable th, String msg, Object... args);
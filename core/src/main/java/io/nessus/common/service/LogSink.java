@@ -0,0 +1,327 @@
+package io.nessus.common.service;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.nessus.common.AssertArg;
+
+/**
+ * The destination for the console output of a {@link LogService}.
+ *
+ * A sink is bound to a scope that the current thread opens and closes.
+ * Tasks that are wrapped with {@link #wrap(Runnable)} or submitted through
+ * {@link #wrap(ExecutorService)} run in the scope that was current when
+ * they were created. The binding is removed when a scope ends, so pooled
+ * threads do not keep a sink and threads without a scope hold no entry.
+ *
+ * A buffered sink collects the output of its scope and writes it to the
+ * target stream in larger blocks, at the latest when the opening scope
+ * is closed. After that, output is written through.
+ *
+ *  try (LogSink.Scope scope = LogSink.open(System.out)) {
+ *      executor.submit(LogSink.wrap(task));
+ *  }
+ */
+public final class LogSink {
+
+    private static final ThreadLocal<LogSink> current = new ThreadLocal<>();
+    
+    // The scope that was opened by LogService.setPrintStream
+    private static final ThreadLocal<Scope> printStreamScope = new ThreadLocal<>();
+
+    // Flush a buffered sink when it exceeds this size
+    private static final int FLUSH_SIZE = 8 * 1024;
+
+    private final PrintStream target;
+    private final StringBuilder buffer;
+    private final PrintStream printStream;
+    private boolean closed;
+
+    private LogSink(PrintStream target, boolean buffered) {
+        this.target = target;
+        this.buffer = buffered ? new StringBuilder() : null;
+        
+        // Encodes with the default charset, which the sink decodes again
+        this.printStream = buffered ? new PrintStream(new SinkOutputStream(), true) : target;
+    }
+
+    /**
+     * The sink of the current scope or null
+     */
+    public static LogSink current() {
+        return current.get();
+    }
+
+    /**
+     * Opens a scope with a buffered sink for the given target
+     */
+    public static Scope open(PrintStream target) {
+        AssertArg.notNull(target, "Null target");
+        LogSink sink = new LogSink(target, true);
+        return new Scope(sink, true);
+    }
+
+    /**
+     * Opens a scope with an unbuffered sink for the given target
+     */
+    public static Scope openUnbuffered(PrintStream target) {
+        AssertArg.notNull(target, "Null target");
+        return new Scope(new LogSink(target, false), false);
+    }
+
+    /**
+     * Enters the scope of an existing sink. A null sink enters a scope without a sink.
+     */
+    public static Scope enter(LogSink sink) {
+        return new Scope(sink, false);
+    }
+
+    /**
+     * Replaces the sink that was bound by a previous call, see {@link LogService#setPrintStream(PrintStream)}.
+     * Binding the target of the enclosing sink restores that sink.
+     * 
+     * @return the target of the previous sink
+     */
+    static PrintStream setPrintStream(PrintStream out) {
+        LogSink prev = current();
+        Scope scope = printStreamScope.get();
+        if (scope != null) {
+            printStreamScope.remove();
+            scope.close();
+        }
+        LogSink restored = current();
+        if (out != null && (restored == null || restored.getTarget() != out)) {
+            printStreamScope.set(openUnbuffered(out));
+        } else if (out == null && restored != null) {
+            printStreamScope.set(enter(null));
+        }
+        return prev != null ? prev.getTarget() : null;
+    }
+
+    public PrintStream getTarget() {
+        return target;
+    }
+
+    /**
+     * A PrintStream that writes to this sink
+     */
+    public PrintStream getPrintStream() {
+        return printStream;
+    }
+
+    public void println(String line) {
+        if (buffer == null) {
+            target.println(line);
+            return;
+        }
+        synchronized (buffer) {
+            if (closed) {
+                target.println(line);
+                return;
+            }
+            buffer.append(line).append(System.lineSeparator());
+            if (buffer.length() > FLUSH_SIZE) flushBuffer();
+        }
+    }
+
+    public void printStackTrace(Throwable th) {
+        if (buffer == null) {
+            th.printStackTrace(target);
+            return;
+        }
+        StringWriter sw = new StringWriter();
+        th.printStackTrace(new PrintWriter(sw));
+        synchronized (buffer) {
+            if (closed) {
+                target.print(sw);
+                return;
+            }
+            buffer.append(sw);
+            if (buffer.length() > FLUSH_SIZE) flushBuffer();
+        }
+    }
+
+    /**
+     * Writes buffered output to the target
+     */
+    public void flush() {
+        if (buffer != null) {
+            synchronized (buffer) {
+                flushBuffer();
+            }
+        }
+        target.flush();
+    }
+
+    private void close() {
+        if (buffer != null) {
+            synchronized (buffer) {
+                flushBuffer();
+                closed = true;
+            }
+        }
+        target.flush();
+    }
+
+    private void flushBuffer() {
+        if (buffer.length() > 0) {
+            target.print(buffer);
+            buffer.setLength(0);
+        }
+    }
+
+    public static Runnable wrap(Runnable task) {
+        AssertArg.notNull(task, "Null task");
+        LogSink sink = current();
+        return () -> {
+            Scope scope = enter(sink);
+            try {
+                task.run();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        AssertArg.notNull(task, "Null task");
+        LogSink sink = current();
+        return () -> {
+            Scope scope = enter(sink);
+            try {
+                return task.call();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * An executor that runs tasks in the scope of the submitting thread
+     */
+    public static ExecutorService wrap(ExecutorService executor) {
+        AssertArg.notNull(executor, "Null executor");
+        return new AbstractExecutorService() {
+
+            @Override
+            public void execute(Runnable command) {
+                executor.execute(wrap(command));
+            }
+
+            @Override
+            public void shutdown() {
+                executor.shutdown();
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                return executor.shutdownNow();
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return executor.isShutdown();
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return executor.isTerminated();
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                return executor.awaitTermination(timeout, unit);
+            }
+        };
+    }
+
+    /**
+     * Binds a sink to the current thread until it is closed.
+     * Closing restores the sink of the enclosing scope.
+     */
+    public static final class Scope implements AutoCloseable {
+
+        private final LogSink sink;
+        private final LogSink prev;
+        private final boolean owner;
+        private final Thread thread;
+
+        private Scope(LogSink sink, boolean owner) {
+            this.sink = sink;
+            this.prev = current.get();
+            this.owner = owner;
+            this.thread = Thread.currentThread();
+            if (sink != null) current.set(sink);
+            else current.remove();
+        }
+
+        public LogSink getSink() {
+            return sink;
+        }
+
+        @Override
+        public void close() {
+            if (Thread.currentThread() == thread) {
+                if (prev != null) current.set(prev);
+                else current.remove();
+            }
+            if (owner && sink != null) {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes the bytes of the PrintStream, keeping incomplete characters for the next write
+     */
+    private class SinkOutputStream extends OutputStream {
+
+        private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer partial = ByteBuffer.allocate(0);
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            synchronized (buffer) {
+                ByteBuffer in = ByteBuffer.wrap(b, off, len);
+                if (partial.hasRemaining()) {
+                    in = ByteBuffer.allocate(partial.remaining() + len).put(partial).put(in);
+                    in.flip();
+                }
+                CharBuffer out = CharBuffer.allocate((int) Math.ceil(in.remaining() * decoder.maxCharsPerByte()) + 1);
+                decoder.decode(in, out, false);
+                partial = in.hasRemaining() ? ByteBuffer.allocate(in.remaining()).put(in) : ByteBuffer.allocate(0);
+                partial.flip();
+                out.flip();
+                if (closed) {
+                    target.print(out);
+                    return;
+                }
+                buffer.append(out);
+                if (buffer.length() > FLUSH_SIZE) flushBuffer();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
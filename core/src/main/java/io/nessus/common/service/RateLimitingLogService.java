@@ -0,0 +1,250 @@
+package io.nessus.common.service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.event.Level;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.Config;
+
+/**
+ * A LogService that limits the rate of messages per logger and message template.
+ *
+ * Each template gets a token bucket that allows a burst of messages and then
+ * a steady rate. Messages over the limit are counted and reported in a summary
+ * once per summary interval. The summary is written by a logging call that
+ * comes after the interval elapsed, there is no timer thread.
+ *
+ * The first burst of messages per template is written with full stack traces.
+ * Beyond that, a stack trace is written once per summary interval. Later 
+ * occurrences of the same stack trace only log the message and the exception.
+ * The stack trace is only inspected for messages beyond the burst.
+ */
+public class RateLimitingLogService implements LogService {
+
+    // Templates beyond this number are not limited
+    private static final int MAX_BUCKETS = 10000;
+    private static final int MAX_TRACES = 1000;
+
+    private final LogService delegate;
+    private final int burst;
+    private final double permitsPerNano;
+    private final long summaryNanos;
+
+    private final Map<Logger, Map<String, Bucket>> buckets = new ConcurrentHashMap<>();
+    private final Map<TraceSignature, Boolean> traces = new ConcurrentHashMap<>();
+    private final AtomicLong bucketCount = new AtomicLong();
+    private final AtomicLong nextSummary;
+
+    public RateLimitingLogService() {
+        this(new BasicLogService(), 10, 1.0, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param burst the number of messages per template that are always written
+     * @param permitsPerSecond the number of messages per template after the burst
+     * @param summaryInterval the interval of suppressed message summaries
+     */
+    public RateLimitingLogService(LogService delegate, int burst, double permitsPerSecond, long summaryInterval, TimeUnit unit) {
+        AssertArg.notNull(delegate, "Null delegate");
+        AssertArg.isTrue(burst > 0, "Invalid burst: " + burst);
+        AssertArg.isTrue(permitsPerSecond > 0, "Invalid rate: " + permitsPerSecond);
+        this.delegate = delegate;
+        this.burst = burst;
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.summaryNanos = unit.toNanos(summaryInterval);
+        this.nextSummary = new AtomicLong(System.nanoTime() + summaryNanos);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Class<LogService> getType() {
+        return LogService.class;
+    }
+
+    @Override
+    public void init(Config config) {
+        delegate.init(config);
+    }
+
+    @Override
+    public void close() {
+        writeSummary();
+        delegate.close();
+    }
+
+    /**
+     * The number of messages that were suppressed and not yet reported
+     */
+    public long getSuppressedCount() {
+        long count = 0;
+        for (Map<String, Bucket> map : buckets.values()) {
+            for (Bucket bucket : map.values()) {
+                count += bucket.suppressed.get();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void log(Logger log, Level level, Throwable th, String msg, Object... args) {
+        if (level == Level.DEBUG && !log.isDebugEnabled() || level == Level.TRACE && !log.isTraceEnabled())
+            return;
+
+        long now = System.nanoTime();
+        long next = nextSummary.get();
+        if (now - next >= 0 && nextSummary.compareAndSet(next, now + summaryNanos)) {
+            writeSummary();
+        }
+
+        Bucket bucket = getBucket(log, msg);
+        if (bucket != null && !bucket.tryAcquire(now)) {
+            bucket.suppressed.incrementAndGet();
+            return;
+        }
+
+        if (th != null && (bucket == null || bucket.isThrottled())) {
+            TraceSignature signature = new TraceSignature(th);
+            if (traces.containsKey(signature)) {
+                // As a string, a trailing Throwable argument would be logged with its stack trace
+                delegate.log(log, level, null, "{} [{}, stack trace omitted]", BasicLogService.format(msg, args), String.valueOf(th));
+                return;
+            }
+            if (traces.size() < MAX_TRACES) 
+                traces.put(signature, Boolean.TRUE);
+        }
+        delegate.log(log, level, th, msg, args);
+    }
+
+    @Override
+    public void logError(Logger log, Throwable th, String msg) {
+        log(log, Level.ERROR, th, msg);
+    }
+
+    @Override
+    public void logError(Logger log, String msg, Object... args) {
+        log(log, Level.ERROR, null, msg, args);
+    }
+
+    @Override
+    public void logWarn(Logger log, String msg, Object... args) {
+        log(log, Level.WARN, null, msg, args);
+    }
+
+    @Override
+    public void logInfo(Logger log, String msg, Object... args) {
+        log(log, Level.INFO, null, msg, args);
+    }
+
+    @Override
+    public void logDebug(Logger log, String msg, Object... args) {
+        log(log, Level.DEBUG, null, msg, args);
+    }
+
+    @Override
+    public void logTrace(Logger log, String msg, Object... args) {
+        log(log, Level.TRACE, null, msg, args);
+    }
+
+    private Bucket getBucket(Logger log, String msg) {
+        String template = msg != null ? msg : "";
+        Map<String, Bucket> map = buckets.computeIfAbsent(log, key -> new ConcurrentHashMap<>());
+        Bucket bucket = map.get(template);
+        if (bucket == null && bucketCount.get() < MAX_BUCKETS) {
+            Bucket aux = new Bucket(log, template);
+            bucket = map.putIfAbsent(template, aux);
+            if (bucket == null) {
+                bucket = aux;
+                bucketCount.incrementAndGet();
+            }
+        }
+        return bucket;
+    }
+
+    private void writeSummary() {
+        traces.clear();
+        for (Map<String, Bucket> map : buckets.values()) {
+            for (Bucket bucket : map.values()) {
+                bucket.resetPassed();
+                long count = bucket.suppressed.getAndSet(0);
+                if (count > 0) {
+                    delegate.logWarn(bucket.log, "Suppressed {} messages like: {}", count, bucket.template);
+                }
+            }
+        }
+    }
+
+    private class Bucket {
+
+        final Logger log;
+        final String template;
+        final AtomicLong suppressed = new AtomicLong();
+        private double tokens;
+        private long lastRefill;
+        private long passed;
+
+        Bucket(Logger log, String template) {
+            this.log = log;
+            this.template = template;
+            this.tokens = burst;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+            if (tokens < 1)
+                return false;
+            tokens -= 1;
+            passed++;
+            return true;
+        }
+
+        // The burst was used up in this summary interval
+        synchronized boolean isThrottled() {
+            return passed >= burst;
+        }
+
+        synchronized void resetPassed() {
+            passed = 0;
+        }
+    }
+
+    /**
+     * Identifies a stack trace by the exception types and frames of the cause chain
+     */
+    private static final class TraceSignature {
+
+        private final Object[] elements;
+        private final int hash;
+
+        TraceSignature(Throwable th) {
+            int depth = 0;
+            for (Throwable aux = th; aux != null && depth < 10; aux = aux.getCause()) depth++;
+            elements = new Object[depth * 2];
+            Throwable aux = th;
+            for (int i = 0; i < depth; i++, aux = aux.getCause()) {
+                elements[2 * i] = aux.getClass();
+                elements[2 * i + 1] = Arrays.asList(aux.getStackTrace());
+            }
+            hash = Arrays.hashCode(elements);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TraceSignature)) return false;
+            TraceSignature other = (TraceSignature) obj;
+            return hash == other.hash && Arrays.equals(elements, other.elements);
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package io.nessus.common.service;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import io.nessus.common.Config;
 
 public interface Service {
@@ -9,9 +14,33 @@ public interface Service {
 		return (Class<T>) getClass();
 	}
 	
+	/**
+	 * The types of services that must be initialized before this one
+	 * and closed after it.
+	 */
+	default Set<Class<? extends Service>> getDependencies() {
+		return Collections.emptySet();
+	}
+	
 	default void init(Config config) {
 	}
 
+	/**
+	 * Initialize this service without blocking the caller.
+	 * The default runs {@link #init(Config)} on the given executor.
+	 */
+	default CompletableFuture<Void> initAsync(Config config, Executor executor) {
+		return CompletableFuture.runAsync(() -> init(config), executor);
+	}
+
+	/**
+	 * Config initialization waits for critical services only.
+	 * Other services may still be starting when it returns.
+	 */
+	default boolean isCritical() {
+		return true;
+	}
+
 	default void close() {
 	}
 }
@@ -0,0 +1,393 @@
+package io.nessus.common.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.AssertState;
+import io.nessus.common.CheckedExceptionWrapper;
+import io.nessus.common.Config;
+
+/**
+ * Initializes and closes services in the order of their {@link Service#getDependencies()}
+ * and otherwise in the order they were given.
+ *
+ * By default, one service is initialized after the other. With a higher {@link #parallelism(int)},
+ * services that do not depend on each other are initialized concurrently on a bounded pool, 
+ * using {@link Service#initAsync(Config, java.util.concurrent.Executor)}.
+ * A service is closed after all services that depend on it.
+ * A dependency on a service that is not part of this initializer is assumed
+ * to be available already.
+ */
+public class ServiceInitializer {
+
+    static final Logger LOG = LoggerFactory.getLogger(ServiceInitializer.class);
+
+    private final Config config;
+    private final List<Service> services = new ArrayList<>();
+    private final Map<Service, List<Service>> dependencies = new IdentityHashMap<>();
+    private final Map<Service, List<Service>> dependents = new IdentityHashMap<>();
+    private final Map<Service, Long> timings = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<Service, ServiceState> states = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<Service, CompletableFuture<Void>> futures = new IdentityHashMap<>();
+    private CompletableFuture<Void> completion;
+    private ExecutorService initExecutor;
+    private int parallelism = 1;
+    private long closeTimeout = TimeUnit.SECONDS.toNanos(30);
+
+    public ServiceInitializer(Config config, List<? extends Service> services) {
+        AssertArg.notNull(config, "Null config");
+        AssertArg.notNull(services, "Null services");
+        this.config = config;
+
+        for (Service srv : services) {
+            dependencies.put(srv, new ArrayList<>());
+            dependents.put(srv, new ArrayList<>());
+        }
+        for (Service srv : services) {
+            for (Class<? extends Service> type : srv.getDependencies()) {
+                Service dep = AssertState.notNull(config.getService(type), "Missing dependency of " + srv.getClass().getName() + ": " + type.getName());
+                if (dep != srv && dependencies.containsKey(dep)) {
+                    dependencies.get(srv).add(dep);
+                    dependents.get(dep).add(srv);
+                }
+            }
+        }
+
+        Map<Service, Boolean> visited = new IdentityHashMap<>();
+        for (Service srv : services) {
+            visit(srv, visited, new ArrayList<>());
+        }
+    }
+
+    /**
+     * The maximum number of services that are initialized or closed at the same time.
+     * The default of one keeps the services in order.
+     */
+    public ServiceInitializer parallelism(int parallelism) {
+        AssertArg.isTrue(parallelism > 0, "Invalid parallelism: " + parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * The maximum time to wait for pending initializations when closing.
+     * Initializations that are still pending after that are cancelled
+     * and their threads are interrupted.
+     */
+    public ServiceInitializer closeTimeout(long timeout, TimeUnit unit) {
+        AssertArg.isTrue(timeout >= 0, "Invalid timeout: " + timeout);
+        this.closeTimeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Adds a service that was initialized elsewhere, i.e. a lazy service.
+     * It is not initialized again, but closed together with the others.
+     */
+    public void addService(Service srv) {
+        AssertArg.notNull(srv, "Null service");
+
+        // Resolve outside the lock, a lookup may create another lazy service
+        List<Service> before = new ArrayList<>();
+        List<Service> after = new ArrayList<>();
+        for (Service aux : getServices()) {
+            if (dependsOn(srv, aux)) before.add(aux);
+            else if (dependsOn(aux, srv)) after.add(aux);
+        }
+
+        synchronized (this) {
+            if (dependencies.containsKey(srv))
+                return;
+            dependencies.put(srv, new ArrayList<>(before));
+            dependents.put(srv, new ArrayList<>(after));
+            before.forEach(aux -> dependents.get(aux).add(srv));
+            after.forEach(aux -> dependencies.get(aux).add(srv));
+            states.put(srv, ServiceState.READY);
+            futures.put(srv, CompletableFuture.completedFuture(null));
+
+            // Keep the order, so that dependents are closed first
+            List<Service> order = new ArrayList<>(services);
+            order.add(srv);
+            services.clear();
+            Map<Service, Boolean> visited = new IdentityHashMap<>();
+            for (Service aux : order) {
+                visit(aux, visited, new ArrayList<>());
+            }
+        }
+    }
+
+    /**
+     * The services in initialization order
+     */
+    public synchronized List<Service> getServices() {
+        return Collections.unmodifiableList(new ArrayList<>(services));
+    }
+
+    /**
+     * The time it took to initialize or close the given service in the last run
+     */
+    public long getTime(Service srv, TimeUnit unit) {
+        Long nanos = timings.get(srv);
+        return nanos != null ? unit.convert(nanos, TimeUnit.NANOSECONDS) : -1;
+    }
+
+    /**
+     * The lifecycle state of the given service
+     */
+    public ServiceState getState(Service srv) {
+        ServiceState state = states.get(srv);
+        return state != null ? state : ServiceState.NEW;
+    }
+
+    /**
+     * Initializes all services and waits for the critical ones.
+     * Other services continue to initialize in the background.
+     * If a service fails, the services that depend on it are not initialized.
+     */
+    public void initServices() {
+        initServicesAsync();
+        List<CompletableFuture<Void>> critical = new ArrayList<>();
+        for (Service srv : services) {
+            if (srv.isCritical()) critical.add(futures.get(srv));
+        }
+        try {
+            CompletableFuture.allOf(critical.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException ex) {
+            throw CheckedExceptionWrapper.create(ex.getCause());
+        }
+    }
+
+    /**
+     * Starts to initialize all services.
+     *
+     * @return a future that completes when all services are initialized
+     */
+    public synchronized CompletableFuture<Void> initServicesAsync() {
+        if (completion != null)
+            return completion;
+
+        timings.clear();
+        long start = System.nanoTime();
+        ExecutorService executor = createExecutor();
+        initExecutor = executor;
+        CompletableFuture<Void> previous = null;
+        for (Service srv : services) {
+            // Added services are initialized already
+            if (futures.containsKey(srv)) 
+                continue;
+            CompletableFuture<Void> future = after(CompletableFuture.allOf(predecessors(srv, dependencies)), previous)
+                .thenComposeAsync(v -> {
+                    states.put(srv, ServiceState.STARTING);
+                    long t0 = System.nanoTime();
+                    return srv.initAsync(config, executor).whenComplete((r, th) -> timings.put(srv, System.nanoTime() - t0));
+                }, executor)
+                .whenComplete((r, th) -> {
+                    states.put(srv, th == null ? ServiceState.READY : ServiceState.FAILED);
+                    if (th != null && !srv.isCritical())
+                        LOG.error("Cannot initialize service: " + srv, th instanceof CompletionException ? th.getCause() : th);
+                });
+            futures.put(srv, future);
+            previous = future;
+        }
+
+        completion = CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]));
+        completion.whenComplete((r, th) -> {
+            executor.shutdown();
+            report("Initialized", services, System.nanoTime() - start);
+        });
+        return completion;
+    }
+
+    /**
+     * Waits for all services to complete their initialization.
+     *
+     * @return true if all services are ready, false if one failed or the timeout elapsed
+     */
+    public boolean awaitServices(long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<Void> future = initServicesAsync();
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes all services and waits for them to complete.
+     * Services that are still initializing are closed once they are done,
+     * or once their initialization is cancelled after the close timeout.
+     * Services that were added while closing are not closed.
+     * A failing service does not stop the others, the first failure is 
+     * thrown once all services are closed.
+     */
+    public void closeServices() {
+        Map<Service, CompletableFuture<Void>> initialized;
+        synchronized (this) {
+            initialized = new IdentityHashMap<>(futures);
+        }
+        cancelPending(initialized);
+
+        List<Service> reverse;
+        Map<Service, List<Service>> closeAfter = new IdentityHashMap<>();
+        synchronized (this) {
+            reverse = new ArrayList<>(services);
+            for (Service srv : reverse) {
+                closeAfter.put(srv, new ArrayList<>(dependents.get(srv)));
+            }
+        }
+        Collections.reverse(reverse);
+
+        timings.clear();
+        long start = System.nanoTime();
+        ExecutorService executor = createExecutor();
+        Map<Service, CompletableFuture<Void>> closed = new IdentityHashMap<>();
+        List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> previous = null;
+        for (Service srv : reverse) {
+            CompletableFuture<?> initDone = initialized.containsKey(srv) ? initialized.get(srv).handle((r, th) -> r) : CompletableFuture.completedFuture(null);
+            CompletableFuture<Void> dependentsClosed = CompletableFuture.allOf(predecessors(srv, closeAfter, closed));
+            CompletableFuture<Void> future = after(CompletableFuture.allOf(initDone, dependentsClosed), previous).thenRunAsync(() -> {
+                long t0 = System.nanoTime();
+                try {
+                    srv.close();
+                } catch (RuntimeException ex) {
+                    failures.add(ex);
+                } finally {
+                    timings.put(srv, System.nanoTime() - t0);
+                    states.put(srv, ServiceState.CLOSED);
+                }
+            }, executor);
+            closed.put(srv, future);
+            previous = future;
+        }
+        try {
+            CompletableFuture.allOf(closed.values().toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            executor.shutdown();
+            report("Closed", reverse, System.nanoTime() - start);
+        }
+        if (!failures.isEmpty()) {
+            RuntimeException ex = failures.get(0);
+            failures.subList(1, failures.size()).forEach(ex::addSuppressed);
+            throw ex;
+        }
+    }
+
+    private void cancelPending(Map<Service, CompletableFuture<Void>> initialized) {
+        try {
+            CompletableFuture.allOf(initialized.values().toArray(new CompletableFuture<?>[0])).get(closeTimeout, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException ex) {
+            // Failed initializations are reported already
+        } catch (InterruptedException | TimeoutException ex) {
+            if (ex instanceof InterruptedException) 
+                Thread.currentThread().interrupt();
+            for (Service srv : getServices()) {
+                CompletableFuture<Void> future = initialized.get(srv);
+                if (future != null && future.cancel(true))
+                    LOG.warn("Cancelled pending initialization: {}", srv);
+            }
+            
+            // Cancelling the futures does not stop a running init
+            ExecutorService executor;
+            synchronized (this) {
+                executor = initExecutor;
+            }
+            if (executor != null) 
+                executor.shutdownNow();
+        }
+    }
+
+    private boolean dependsOn(Service srv, Service dep) {
+        for (Class<? extends Service> type : srv.getDependencies()) {
+            if (type.isInstance(dep) && config.getService(type) == dep)
+                return true;
+        }
+        return false;
+    }
+
+    private void visit(Service srv, Map<Service, Boolean> visited, List<Service> path) {
+        Boolean done = visited.get(srv);
+        if (done == Boolean.TRUE)
+            return;
+        if (done == Boolean.FALSE) {
+            List<String> names = new ArrayList<>();
+            for (Service aux : path.subList(path.indexOf(srv), path.size())) {
+                names.add(aux.getClass().getSimpleName());
+            }
+            names.add(srv.getClass().getSimpleName());
+            throw new IllegalStateException("Service dependency cycle: " + String.join(" -> ", names));
+        }
+        visited.put(srv, Boolean.FALSE);
+        path.add(srv);
+        for (Service dep : dependencies.get(srv)) {
+            visit(dep, visited, path);
+        }
+        path.remove(path.size() - 1);
+        visited.put(srv, Boolean.TRUE);
+        services.add(srv);
+    }
+
+    private CompletableFuture<?>[] predecessors(Service srv, Map<Service, List<Service>> edges) {
+        return predecessors(srv, edges, futures);
+    }
+
+    private CompletableFuture<?>[] predecessors(Service srv, Map<Service, List<Service>> edges, Map<Service, CompletableFuture<Void>> done) {
+        return edges.get(srv).stream()
+                .map(done::get)
+                .toArray(CompletableFuture<?>[]::new);
+    }
+
+    /**
+     * Without parallelism, a service also waits for the previous one, whether it failed or not
+     */
+    private CompletableFuture<Void> after(CompletableFuture<Void> ready, CompletableFuture<Void> previous) {
+        if (parallelism > 1 || previous == null)
+            return ready;
+        return CompletableFuture.allOf(ready, previous.handle((r, th) -> null));
+    }
+
+    private ExecutorService createExecutor() {
+        int threads = Math.max(1, Math.min(parallelism, services.size()));
+        return Executors.newFixedThreadPool(threads, new ServiceThreadFactory());
+    }
+
+    private void report(String action, List<Service> order, long nanos) {
+        if (LOG.isInfoEnabled()) {
+            List<String> times = new ArrayList<>();
+            for (Service srv : order) {
+                long millis = getTime(srv, TimeUnit.MILLISECONDS);
+                times.add(srv.getClass().getSimpleName() + "=" + (millis >= 0 ? millis + "ms" : "n/a"));
+            }
+            LOG.info("{} {} services in {}ms: {}", action, order.size(), TimeUnit.NANOSECONDS.toMillis(nanos), String.join(", ", times));
+        }
+    }
+
+    private static class ServiceThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable run) {
+            Thread thread = new Thread(run, "ServiceInit-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package io.nessus.common.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.AssertState;
+
+/**
+ * A registry of services that can be looked up by any of their types.
+ *
+ * A service is registered under its {@link Service#getType()}, which replaces
+ * a service of the same type. It is also indexed under its superclasses and
+ * interfaces. For those, the service that was registered first wins.
+ *
+ * Readers work on an immutable snapshot of the index and never block.
+ * A lookup for a type that no service implements is answered from the
+ * same index.
+ *
+ * A lazy service is registered with a supplier and indexed by the registered type.
+ * It is created exactly once, on the first lookup. A lookup of the same
+ * lazy service while it is being created fails with an IllegalStateException.
+ */
+public final class ServiceRegistry {
+
+    private final Object writeLock = new Object();
+    private volatile Snapshot snapshot = new Snapshot(new LinkedHashMap<>());
+
+    public <T extends Service> void addService(T service) {
+        AssertArg.notNull(service, "Null service");
+        register(service.getType(), service);
+    }
+
+    public <T extends Service> void addService(Class<T> type, Supplier<? extends T> supplier) {
+        AssertArg.notNull(type, "Null type");
+        AssertArg.notNull(supplier, "Null supplier");
+        register(type, new LazyService(type, supplier));
+    }
+
+    public <T extends Service> T getService(Class<T> type) {
+        return getService(type, true);
+    }
+
+    /**
+     * Get the service of the given type.
+     * Without create, this returns null for a lazy service that was not created yet.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Service> T getService(Class<T> type, boolean create) {
+        Object entry = snapshot.index.get(type);
+        if (entry instanceof LazyService) {
+            LazyService lazy = (LazyService) entry;
+            return (T) (create ? lazy.get() : lazy.instance);
+        }
+        return (T) entry;
+    }
+
+    public boolean hasService(Class<?> type) {
+        return snapshot.index.containsKey(type);
+    }
+
+    /**
+     * The registered services in registration order.
+     * Lazy services are included once they were created.
+     */
+    public List<Service> getServices() {
+        Snapshot aux = snapshot;
+        if (aux.lazyCount == 0)
+            return aux.list;
+        List<Service> result = new ArrayList<>();
+        for (Object entry : aux.services.values()) {
+            Service srv = entry instanceof LazyService ? ((LazyService) entry).instance : (Service) entry;
+            if (srv != null) result.add(srv);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private void register(Class<?> type, Object entry) {
+        synchronized (writeLock) {
+            Map<Class<?>, Object> services = new LinkedHashMap<>(snapshot.services);
+            services.put(type, entry);
+            snapshot = new Snapshot(services);
+        }
+    }
+
+    private static class Snapshot {
+
+        final Map<Class<?>, Object> services;
+        final Map<Class<?>, Object> index;
+        final List<Service> list;
+        final int lazyCount;
+
+        Snapshot(Map<Class<?>, Object> services) {
+            this.services = services;
+            this.index = new HashMap<>(services);
+            List<Service> eager = new ArrayList<>();
+            int lazy = 0;
+            for (Object entry : services.values()) {
+                if (entry instanceof LazyService) {
+                    indexTypes(entry, ((LazyService) entry).type);
+                    lazy++;
+                } else {
+                    indexTypes(entry, entry.getClass());
+                    eager.add((Service) entry);
+                }
+            }
+            this.list = Collections.unmodifiableList(eager);
+            this.lazyCount = lazy;
+        }
+
+        private void indexTypes(Object entry, Class<?> type) {
+            if (type == null || type == Object.class)
+                return;
+            index.putIfAbsent(type, entry);
+            indexTypes(entry, type.getSuperclass());
+            for (Class<?> intf : type.getInterfaces()) {
+                indexTypes(entry, intf);
+            }
+        }
+    }
+
+    private static class LazyService {
+
+        final Class<?> type;
+        final Supplier<? extends Service> supplier;
+        volatile Service instance;
+        
+        // Guarded by this, only the creating thread can see it set
+        private boolean creating;
+
+        LazyService(Class<?> type, Supplier<? extends Service> supplier) {
+            this.type = type;
+            this.supplier = supplier;
+        }
+
+        Service get() {
+            Service result = instance;
+            if (result == null) {
+                synchronized (this) {
+                    result = instance;
+                    if (result == null) {
+                        AssertState.isTrue(!creating, "Recursive lookup of lazy service: " + type.getName());
+                        creating = true;
+                        try {
+                            result = AssertState.notNull(supplier.get(), "Null service from supplier: " + type.getName());
+                        } finally {
+                            creating = false;
+                        }
+                        AssertState.isTrue(type.isInstance(result), "Not an instance of " + type.getName() + ": " + result);
+                        instance = result;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package io.nessus.common.service;
+
+/**
+ * The lifecycle states of a service that is managed by a {@link ServiceInitializer}
+ */
+public enum ServiceState {
+
+    NEW, STARTING, READY, FAILED, CLOSED;
+}
@@ -0,0 +1,228 @@
+package io.nessus.common.utils;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.nessus.common.AssertArg;
+
+/**
+ * Limits the number of concurrent {@link HttpRequest}s per host.
+ *
+ * A request waits for a permit before it is handed to an executor, so that
+ * waiting does not block a thread. A request that times out while waiting
+ * gives up its place in the queue.
+ *
+ * The limiter does not own connections. Open connections are kept by the
+ * keep-alive cache of the JDK, see <code>http.keepAlive</code> and
+ * <code>http.maxConnections</code>.
+ *
+ *  HttpHostLimiter limiter = new HttpHostLimiter().maxConcurrent(5);
+ *  HttpRequest.get(url).limiter(limiter).getResponse();
+ */
+public final class HttpHostLimiter {
+
+    private final Map<String, HostLimit> hosts = new ConcurrentHashMap<>();
+    private int maxConcurrent = 5;
+
+    /**
+     * The maximum number of concurrent requests per host
+     */
+    public HttpHostLimiter maxConcurrent(int max) {
+        AssertArg.isTrue(max > 0, "Invalid max concurrent: " + max);
+        AssertArg.isTrue(hosts.isEmpty(), "Limiter already in use");
+        this.maxConcurrent = max;
+        return this;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Requests a permit for the host of the given URL.
+     * The future completes when the permit is granted. Cancel it to stop waiting.
+     */
+    public CompletableFuture<Permit> acquire(URL url) {
+        AssertArg.notNull(url, "Null url");
+        HostLimit limit = hosts.computeIfAbsent(getHostKey(url), HostLimit::new);
+        return limit.acquire();
+    }
+
+    /**
+     * The statistics for the host of the given URL
+     */
+    public HostStats getStats(URL url) {
+        HostLimit limit = hosts.get(getHostKey(url));
+        return limit != null ? limit.getStats() : new HostStats(getHostKey(url), maxConcurrent);
+    }
+
+    /**
+     * The statistics per host
+     */
+    public Map<String, HostStats> getStats() {
+        Map<String, HostStats> result = new TreeMap<>();
+        for (HostLimit limit : hosts.values()) {
+            result.put(limit.host, limit.getStats());
+        }
+        return result;
+    }
+
+    static String getHostKey(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * The permission to run one request against a host
+     */
+    public final class Permit {
+
+        private final HostLimit limit;
+        private boolean released;
+
+        private Permit(HostLimit limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Passes the permit on to the next waiting request. Only the first call has an effect.
+         */
+        public void release() {
+            synchronized (this) {
+                if (released) return;
+                released = true;
+            }
+            limit.release();
+        }
+    }
+
+    private class HostLimit {
+
+        final String host;
+        final Deque<CompletableFuture<Permit>> waiting = new ArrayDeque<>();
+        int active;
+        long granted;
+        long cancelled;
+
+        HostLimit(String host) {
+            this.host = host;
+        }
+
+        CompletableFuture<Permit> acquire() {
+            CompletableFuture<Permit> future = new CompletableFuture<>();
+            synchronized (this) {
+                if (active >= maxConcurrent) {
+                    waiting.addLast(future);
+                    future.whenComplete((permit, th) -> {
+                        if (th != null) cancel(future);
+                    });
+                    return future;
+                }
+                active++;
+                granted++;
+            }
+            future.complete(new Permit(this));
+            return future;
+        }
+
+        void release() {
+            while (true) {
+                CompletableFuture<Permit> next;
+                synchronized (this) {
+                    next = waiting.pollFirst();
+                    if (next == null) {
+                        active--;
+                        return;
+                    }
+                }
+                // Complete outside the lock, a waiter that gave up passes the permit on
+                boolean accepted = next.complete(new Permit(this));
+                synchronized (this) {
+                    if (accepted) granted++;
+                    else cancelled++;
+                }
+                if (accepted)
+                    return;
+            }
+        }
+
+        synchronized void cancel(CompletableFuture<Permit> future) {
+            if (waiting.remove(future))
+                cancelled++;
+        }
+
+        synchronized HostStats getStats() {
+            HostStats stats = new HostStats(host, maxConcurrent);
+            stats.active = active;
+            stats.waiting = waiting.size();
+            stats.granted = granted;
+            stats.cancelled = cancelled;
+            return stats;
+        }
+    }
+
+    /**
+     * A snapshot of the requests to a host
+     */
+    public static final class HostStats {
+
+        private final String host;
+        private final int maxConcurrent;
+        private int active;
+        private int waiting;
+        private long granted;
+        private long cancelled;
+
+        private HostStats(String host, int maxConcurrent) {
+            this.host = host;
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+
+        /**
+         * Requests that hold a permit
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * Requests that wait for a permit
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        /**
+         * Permits that were granted
+         */
+        public long getGrantedCount() {
+            return granted;
+        }
+
+        /**
+         * Requests that gave up waiting for a permit
+         */
+        public long getCancelledCount() {
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return "HostStats{" + "host=" + host + ", active=" + active + ", waiting=" + waiting
+                    + ", granted=" + granted + ", cancelled=" + cancelled + '}';
+        }
+    }
+}
@@ -2,35 +2,69 @@ package io.nessus.common.utils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import io.nessus.common.AssertArg;
+import io.nessus.common.CheckedExceptionWrapper;
+
 /**
  * @author <a href="mailto:cdewolf@redhat.com">Carlo de Wolf</a>
  */
 public final class HttpRequest {
 
+    private static final int BUFFER_SIZE = 8192;
+    // Larger bodies grow the buffer while they are read
+    private static final int MAX_PRESIZE = 16 * 1024 * 1024;
+    // Requests beyond this number wait in the queue of the shared executor
+    private static final int MAX_THREADS = 64;
+
+    private static final Executor defaultExecutor = createDefaultExecutor();
+    private static final ScheduledExecutorService timeouts = createTimeoutExecutor();
+
     // Hide ctor
     private HttpRequest(){
     }
 
+    /**
+     * The shared executor that runs requests on a bounded number of threads.
+     * Further requests are queued, the time they wait counts towards their timeout.
+     * Idle threads are released after a minute.
+     */
+    public static Executor getDefaultExecutor() {
+        return defaultExecutor;
+    }
+
     public static HttpRequestBuilder get(String url) {
         return new HttpRequestBuilder(url, "GET");
     }
@@ -60,6 +94,10 @@ public final class HttpRequest {
         private Map<String, String> headers = new HashMap<>();
         private TimeUnit timeUnit = TimeUnit.MILLISECONDS;
         private long timeout = 10000;
+        private Executor executor = defaultExecutor;
+        private HttpHostLimiter limiter;
+        private boolean streaming;
+        private ChunkHandler chunkHandler;
 
         public HttpRequestBuilder(String url, String method) {
             this.requestUrl = url;
@@ -98,72 +136,233 @@ public final class HttpRequest {
             return this;
         }
 
-        public HttpResponse getResponse() throws TimeoutException, IOException, ExecutionException {
-            Callable<HttpResponse> task = new Callable<HttpResponse>() {
-                @Override
-                public HttpResponse call() throws Exception {
-                    URL url = new URL(requestUrl);
-                    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setDoInput(true);
-                    conn.setRequestMethod(method);
-                    conn.setInstanceFollowRedirects(followRedirects);
-
-                    Set<String> headerNames = headers.keySet();
-                    for(String headerName : headerNames) {
-                        conn.setRequestProperty(headerName, headers.get(headerName));
-                    }
+        /**
+         * Run the request on the given executor instead of the shared one
+         */
+        public HttpRequestBuilder executor(Executor executor) {
+            AssertArg.notNull(executor, "Null executor");
+            this.executor = executor;
+            return this;
+        }
 
-                    if(method.equals("POST") || method.equals("PUT")) {
-                        conn.setDoOutput(true);
-                    }
+        /**
+         * Limit the concurrent requests per host with the given limiter
+         */
+        public HttpRequestBuilder limiter(HttpHostLimiter limiter) {
+            this.limiter = limiter;
+            return this;
+        }
 
-                    if(content != null && !content.isEmpty()) {
-                        OutputStream outputStream = conn.getOutputStream();
-                        outputStream.write(content.getBytes("UTF-8"));
-                        outputStream.flush();
-                        outputStream.close();
-                    }
+        /**
+         * Do not read a successful response body. The caller reads and closes
+         * {@link HttpResponse#getBodyStream()} instead.
+         */
+        public HttpRequestBuilder streaming(boolean value) {
+            this.streaming = value;
+            return this;
+        }
 
-                    return processResponse(conn);
-                }
-            };
-            return executeRequest(task, timeout, timeUnit);
+        /**
+         * Pass a successful response body to the handler in chunks, instead of
+         * keeping it in the response
+         */
+        public HttpRequestBuilder chunkHandler(ChunkHandler handler) {
+            this.chunkHandler = handler;
+            return this;
         }
 
-        private HttpResponse executeRequest(final Callable<HttpResponse> task, final long timeout, final TimeUnit unit)
-                throws TimeoutException, IOException, ExecutionException {
-            ExecutorService executor = Executors.newSingleThreadExecutor();
-            Future<HttpResponse> result = executor.submit(task);
+        public HttpResponse getResponse() throws TimeoutException, IOException, ExecutionException {
+            CompletableFuture<HttpResponse> result = getResponseAsync();
             try {
-                return result.get(timeout, unit);
-            } catch (TimeoutException e) {
-                result.cancel(true);
-                throw e;
+                return result.get();
             } catch (InterruptedException e) {
+                result.cancel(true);
                 throw new IllegalStateException(e);
             } catch (ExecutionException e) {
+                if (e.getCause() instanceof TimeoutException)
+                    throw (TimeoutException) e.getCause();
                 throw e;
+            }
+        }
+
+        /**
+         * Send the request without blocking the caller.
+         *
+         * The future completes exceptionally with a {@link TimeoutException} when the
+         * response does not arrive within the timeout. The connection is closed when
+         * the future times out or is cancelled. With a limiter, the request is only 
+         * handed to the executor once it got a permit.
+         * 
+         * On timeout, the future is completed from the common pool, so that dependent 
+         * stages do not run on the shared timer thread.
+         */
+        public CompletableFuture<HttpResponse> getResponseAsync() {
+            CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+            AtomicReference<HttpURLConnection> connection = new AtomicReference<>();
+
+            // The timeout also covers the time the request waits for a thread
+            // The request executor may be busy with the requests that time out 
+            ScheduledFuture<?> timer = timeouts.schedule(() -> {
+                CompletableFuture.runAsync(() -> result.completeExceptionally(timeoutException()));
+            }, timeout, timeUnit);
+
+            result.whenComplete((response, th) -> {
+                timer.cancel(false);
+                if (th != null) disconnect(connection);
+            });
+
+            if (limiter == null) {
+                dispatch(result, connection, null);
+                return result;
+            }
+
+            CompletableFuture<HttpHostLimiter.Permit> permit;
+            try {
+                permit = limiter.acquire(new URL(requestUrl));
+            } catch (MalformedURLException ex) {
+                result.completeExceptionally(ex);
+                return result;
+            }
+
+            // Stop waiting for a permit when the request times out
+            result.whenComplete((response, th) -> permit.cancel(false));
+            permit.thenAccept(aux -> dispatch(result, connection, aux));
+            return result;
+        }
+
+        private void dispatch(CompletableFuture<HttpResponse> result, AtomicReference<HttpURLConnection> connection, HttpHostLimiter.Permit permit) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        HttpResponse response = execute(result, connection, permit);
+                        if (!result.complete(response)) discard(response);
+                    } catch (SocketTimeoutException ex) {
+                        result.completeExceptionally(timeoutException());
+                    } catch (Throwable th) {
+                        result.completeExceptionally(th);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                if (permit != null) permit.release();
+                result.completeExceptionally(ex);
+            }
+        }
+
+        private HttpResponse execute(CompletableFuture<HttpResponse> result, AtomicReference<HttpURLConnection> connection, HttpHostLimiter.Permit permit) throws IOException {
+            boolean handedOver = false;
+            try {
+                // Timed out or cancelled while waiting for a thread
+                if (result.isDone())
+                    return null;
+
+                HttpResponse response = send(new URL(requestUrl), result, connection);
+                if (response != null && response.bodyStream != null) {
+                    // The permit is released when the caller closes the stream
+                    response.bodyStream = new BodyInputStream(response.bodyStream, permit);
+                    handedOver = true;
+                }
+                return response;
             } finally {
-                executor.shutdownNow();
+                if (permit != null && !handedOver) permit.release();
+            }
+        }
+
+        private HttpResponse send(URL url, CompletableFuture<HttpResponse> result, AtomicReference<HttpURLConnection> connection) throws IOException {
+            final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            connection.set(conn);
+            if (result.isDone()) {
+                disconnect(connection);
+                return null;
+            }
+
+            int millis = (int) Math.min(timeUnit.toMillis(timeout), Integer.MAX_VALUE);
+            conn.setConnectTimeout(Math.max(millis, 1));
+            conn.setReadTimeout(Math.max(millis, 1));
+            conn.setDoInput(true);
+            conn.setRequestMethod(method);
+            conn.setInstanceFollowRedirects(followRedirects);
+
+            Set<String> headerNames = headers.keySet();
+            for(String headerName : headerNames) {
+                conn.setRequestProperty(headerName, headers.get(headerName));
+            }
+
+            if(method.equals("POST") || method.equals("PUT")) {
+                conn.setDoOutput(true);
+            }
+
+            if(content != null && !content.isEmpty()) {
+                OutputStream outputStream = conn.getOutputStream();
+                outputStream.write(content.getBytes("UTF-8"));
+                outputStream.flush();
+                outputStream.close();
+            }
+
+            return processResponse(conn);
+        }
+
+        // Nobody reads the body of a response that came after a timeout
+        private void discard(HttpResponse response) {
+            if (response != null && response.bodyStream != null) {
+                try {
+                    response.bodyStream.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+
+        private void disconnect(AtomicReference<HttpURLConnection> connection) {
+            HttpURLConnection conn = connection.getAndSet(null);
+            if (conn != null) conn.disconnect();
+        }
+
+        private byte[] read(final InputStream in, long length) throws IOException {
+            int size = length > 0 && length <= MAX_PRESIZE ? (int) length : BUFFER_SIZE;
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+
+        private void readChunks(final InputStream in) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
                 try {
-                    executor.awaitTermination(timeout, unit);
-                } catch (InterruptedException e) {
-                    // Ignored
+                    chunkHandler.handle(ByteBuffer.wrap(buffer, 0, read));
+                } catch (IOException ex) {
+                    // Do not mistake a failing handler for a failing connection
+                    throw CheckedExceptionWrapper.create(ex);
                 }
             }
         }
 
-        private String read(final InputStream in) throws IOException {
-            final ByteArrayOutputStream out = new ByteArrayOutputStream();
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+        // Read an unused body to the end, so that the connection can be reused
+        private void drain(final InputStream in) {
+            if (in == null)
+                return;
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) != -1) {
+                    // discard
+                }
+                in.close();
+            } catch (IOException e) {
+                // the connection is not reused
             }
-            return out.toString();
         }
 
-        private HttpResponse processResponse(HttpURLConnection conn) {
+        private TimeoutException timeoutException() {
+            return new TimeoutException("Request timed out after " + timeout + " " + timeUnit + ": " + requestUrl);
+        }
+
+        private HttpResponse processResponse(HttpURLConnection conn) throws SocketTimeoutException {
             final HttpResponse response = new HttpResponse();
+            final Charset charset = getCharset(conn.getContentType());
 
             try {
                 int responseCode = conn.getResponseCode();
@@ -178,7 +377,7 @@ public final class HttpRequest {
                     final InputStream err = conn.getErrorStream();
                     if (err != null) {
                         try {
-                            response.setBody(read(err));
+                            response.setBody(read(err, conn.getContentLengthLong()), charset);
                             return response;
                         } finally {
                             err.close();
@@ -187,18 +386,32 @@ public final class HttpRequest {
                 }
 
                 final InputStream in = conn.getInputStream();
+                if (streaming) {
+                    response.charset = charset;
+                    response.bodyStream = in;
+                    return response;
+                }
                 try {
-                    response.setBody(read(in));
+                    if (chunkHandler != null) {
+                        response.charset = charset;
+                        readChunks(in);
+                    } else {
+                        response.setBody(read(in, conn.getContentLengthLong()), charset);
+                    }
                 } finally {
                     in.close();
                 }
+            } catch (SocketTimeoutException e) {
+                throw e;
             } catch (FileNotFoundException e) {
                 response.setStatusCode(HttpURLConnection.HTTP_NOT_FOUND);
+                drain(conn.getErrorStream());
             } catch (IOException e) {
                 Pattern pattern = Pattern.compile(".*?([0-9]{3}).*");
                 Matcher matcher = pattern.matcher(e.getMessage());
                 if (matcher.matches()) {
                     response.setStatusCode(Integer.parseInt(matcher.group(1)));
+                    drain(conn.getErrorStream());
                 }
             }
 
@@ -206,9 +419,90 @@ public final class HttpRequest {
         }
     }
 
+    /**
+     * The charset parameter of a Content-Type, UTF-8 if there is none
+     */
+    static Charset getCharset(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                String[] toks = param.split("=", 2);
+                if (toks.length == 2 && toks[0].trim().equalsIgnoreCase("charset")) {
+                    String name = toks[1].trim().replace("\"", "");
+                    try {
+                        return Charset.forName(name);
+                    } catch (IllegalArgumentException ex) {
+                        break;
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static Executor createDefaultExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new RequestThreadFactory("HttpRequest-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ScheduledExecutorService createTimeoutExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new RequestThreadFactory("HttpRequest-Timeout-"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private static class RequestThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final String prefix;
+
+        RequestThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable run) {
+            Thread thread = new Thread(run, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Receives the body of a response in chunks. The buffer is only valid during the call.
+     */
+    @FunctionalInterface
+    public interface ChunkHandler {
+
+        void handle(ByteBuffer chunk) throws IOException;
+    }
+
+    // Releases the permit of a streamed body when it is closed
+    private static class BodyInputStream extends FilterInputStream {
+
+        private final HttpHostLimiter.Permit permit;
+
+        BodyInputStream(InputStream in, HttpHostLimiter.Permit permit) {
+            super(in);
+            this.permit = permit;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (permit != null) permit.release();
+            }
+        }
+    }
+
     public static class HttpResponse {
         private int statusCode;
+        private byte[] bodyBytes;
+        private Charset charset = StandardCharsets.UTF_8;
         private String body;
+        private InputStream bodyStream;
         private Map<String, String> headers = new HashMap<>();
 
         public int getStatusCode() {
@@ -219,12 +513,41 @@ public final class HttpRequest {
             this.statusCode = statusCode;
         }
 
+        /**
+         * The body decoded with the charset of the Content-Type
+         */
         public String getBody() {
+            if (body == null && bodyBytes != null)
+                body = new String(bodyBytes, charset);
             return body;
         }
 
-        void setBody(String body) {
-            this.body = body;
+        /**
+         * The body as received, null if it was streamed
+         */
+        public byte[] getBodyBytes() {
+            return bodyBytes;
+        }
+
+        public ByteBuffer getBodyBuffer() {
+            return bodyBytes != null ? ByteBuffer.wrap(bodyBytes).asReadOnlyBuffer() : null;
+        }
+
+        /**
+         * The body of a streaming request. The caller must close it.
+         */
+        public InputStream getBodyStream() {
+            return bodyStream;
+        }
+
+        public Charset getCharset() {
+            return charset;
+        }
+
+        void setBody(byte[] bytes, Charset charset) {
+            this.bodyBytes = bytes;
+            this.charset = charset;
+            this.body = null;
         }
 
         public Map<String, String> getHeaders() {
@@ -241,7 +564,7 @@ public final class HttpRequest {
 
         @Override
         public String toString() {
-            return "HttpResponse{" + "statusCode=" + statusCode + ", body='" + body + '\'' + ", headers=" + headers + '}';
+            return "HttpResponse{" + "statusCode=" + statusCode + ", body='" + getBody() + '\'' + ", headers=" + headers + '}';
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package io.nessus.common.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import io.nessus.common.AssertArg;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer.
+ *
+ * Each slot carries a sequence number that tells producers whether the slot
+ * is free and the consumer whether it holds an element. The capacity is
+ * rounded up to a power of two.
+ */
+public final class RingBuffer<E> {
+
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    public RingBuffer(int capacity) {
+        AssertArg.isTrue(capacity > 0 && capacity <= (1 << 30), "Invalid capacity: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.mask = size - 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Adds the element, if there is space.
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        AssertArg.notNull(element, "Null element");
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements[idx] = element;
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the next element. Must only be called by the consumer.
+     *
+     * @return the element or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head;
+        int idx = (int) (pos & mask);
+        if (sequences.get(idx) != pos + 1)
+            return null;
+        E element = (E) elements[idx];
+        elements[idx] = null;
+        sequences.set(idx, pos + mask + 1);
+        head = pos + 1;
+        return element;
+    }
+
+    /**
+     * Removes up to max elements. Must only be called by the consumer.
+     *
+     * @return the number of elements passed to the consumer
+     */
+    public int drain(Consumer<? super E> consumer, int max) {
+        int count = 0;
+        E element;
+        while (count < max && (element = poll()) != null) {
+            consumer.accept(element);
+            count++;
+        }
+        return count;
+    }
+
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, elements.length));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
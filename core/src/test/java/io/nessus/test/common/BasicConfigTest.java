@@ -1,7 +1,21 @@
 package io.nessus.test.common;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -12,6 +26,9 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import io.nessus.common.BasicConfig;
 import io.nessus.common.Config;
+import io.nessus.common.Parameters;
+import io.nessus.common.ParametersLoader;
+import io.nessus.common.service.ConfigWatchService;
 import io.nessus.common.testing.AbstractTest;
 
 public class BasicConfigTest extends AbstractTest<BasicConfig> {
@@ -36,4 +53,277 @@ public class BasicConfigTest extends AbstractTest<BasicConfig> {
     	
     	Assert.assertEquals(exp, was);
     }  
+
+    @Test
+    public void testConcurrentSnapshots() throws Exception {
+        
+        int readers = 32;
+        
+        Map<String, Object> initial = new LinkedHashMap<>();
+        initial.put("aaa", 0);
+        initial.put("bbb", 0);
+        Config config = new BasicConfig(initial);
+        
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < readers; i++) {
+                futures.add(executor.submit(() -> {
+                    long reads = 0;
+                    while (!done.get()) {
+                        Parameters params = config.getSnapshot();
+                        int valA = params.getInt("aaa", -1);
+                        int valB = params.getInt("bbb", -1);
+                        Assert.assertEquals(valA, valB);
+                        Assert.assertTrue(params.isImmutable());
+                        reads++;
+                    }
+                    return reads;
+                }));
+            }
+            
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 1; i <= 1000; i++) {
+                    Map<String, Object> values = new LinkedHashMap<>();
+                    values.put("aaa", i);
+                    values.put("bbb", i);
+                    config.putParameters(values);
+                }
+            });
+            
+            writer.get(10, TimeUnit.SECONDS);
+            done.set(true);
+            
+            // The readers assert that every snapshot is consistent
+            long reads = 0;
+            for (Future<Long> fut : futures) {
+                reads += fut.get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertTrue(reads > 0);
+            
+            Assert.assertEquals(1000, config.getInt("aaa", 0));
+            Assert.assertEquals(1000, config.getInt("bbb", 0));
+            
+        } finally {
+            executor.shutdownNow();
+        }
+    }  
+
+    @Test
+    public void testReload() throws Exception {
+        
+        Path cfgpath = getOutPath().resolve("reload.yaml");
+        Files.write(cfgpath, Arrays.asList("aaa: 1", "bbb: 2", "ccc: 3"));
+        
+        BasicConfig config = new BasicConfig(cfgpath.toUri().toURL());
+        config.putParameter("ccc", "override");
+        
+        BlockingQueue<Set<String>> events = new LinkedBlockingQueue<>();
+        config.addListener((cfg, keys) -> events.add(keys));
+        
+        config.addService(new ConfigWatchService());
+        config.initServices();
+        try {
+            
+            Files.write(cfgpath, Arrays.asList("aaa: 1", "bbb: 20", "ddd: 4"));
+            
+            Set<String> keys = events.poll(10, TimeUnit.SECONDS);
+            Assert.assertEquals(new HashSet<>(Arrays.asList("bbb", "ddd")), keys);
+            Assert.assertEquals(1, config.getInt("aaa", 0));
+            Assert.assertEquals(20, config.getInt("bbb", 0));
+            
+            // The override survives the removal from the source
+            Assert.assertEquals("override", config.getParameter("ccc", String.class));
+            Assert.assertEquals(4, config.getInt("ddd", 0));
+            
+            // No changes, no notification
+            Assert.assertTrue(config.reload().isEmpty());
+            
+        } finally {
+            config.closeServices();
+        }
+    }  
+
+    @Test
+    public void testChangeListeners() throws Exception {
+        
+        Config config = new BasicConfig(new Parameters());
+        
+        List<Set<String>> allEvents = new ArrayList<>();
+        List<Set<String>> keyEvents = new ArrayList<>();
+        List<Set<String>> prefixEvents = new ArrayList<>();
+        config.addListener((cfg, keys) -> allEvents.add(keys));
+        config.onChange("pool.size", (cfg, keys) -> keyEvents.add(keys));
+        config.onChangePrefix("pool.", (cfg, keys) -> prefixEvents.add(keys));
+        
+        // A burst of writes is delivered as one notification
+        config.batchUpdate(() -> {
+            config.putParameter("pool.size", 10);
+            config.putParameter("other", "foo");
+            config.putParameter("other", "bar");
+        });
+        Assert.assertEquals(1, allEvents.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("pool.size", "other")), allEvents.get(0));
+        
+        // Unchanged values do not notify
+        config.putParameter("other", "bar");
+        Assert.assertEquals(1, allEvents.size());
+        
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("pool.size", 20);
+        values.put("pool.timeout", 30);
+        config.putParameters(values);
+        
+        Assert.assertEquals(2, allEvents.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("pool.size", "pool.timeout")), allEvents.get(1));
+        Assert.assertEquals(2, keyEvents.size());
+        Assert.assertEquals(2, prefixEvents.size());
+        
+        // Writes from a listener are coalesced into the next notification
+        
+        config.onChange("trigger", (cfg, keys) -> {
+            cfg.putParameter("derivedA", 1);
+            cfg.putParameter("derivedB", 2);
+        });
+        allEvents.clear();
+        config.putParameter("trigger", true);
+        
+        Assert.assertEquals(2, allEvents.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("derivedA", "derivedB")), allEvents.get(1));
+    }  
+
+    @Test
+    public void testLoader() throws Exception {
+        
+        Path yamlPath = getOutPath().resolve("loader.yaml");
+        Files.write(yamlPath, Arrays.asList("aaa: 1", "bbb:", "  ccc: foo", "  ddd: [x, y]", "eee: 2.5", "fff: true", "ggg:"));
+        
+        ParametersLoader loader = new ParametersLoader();
+        Parameters params = loader.load(yamlPath.toUri().toURL());
+        Assert.assertTrue(params.isImmutable());
+        Assert.assertEquals(Arrays.asList("aaa", "bbb", "eee", "fff"), params.keys());
+        Assert.assertEquals(Integer.valueOf(1), params.get("aaa", Integer.class));
+        Assert.assertEquals("{ccc=foo, ddd=[x, y]}", params.get("bbb", Map.class).toString());
+        Assert.assertEquals(2.5, params.getDouble("eee", 0), 0);
+        Assert.assertTrue(params.getBoolean("fff", false));
+        Assert.assertEquals(Files.size(yamlPath), loader.getBytesParsed());
+        Assert.assertEquals(4, loader.getEntryCount());
+        
+        params = new ParametersLoader().flatten(true).load(yamlPath.toUri().toURL());
+        Assert.assertEquals(Arrays.asList("aaa", "bbb.ccc", "bbb.ddd", "eee", "fff"), params.keys());
+        Assert.assertEquals(Arrays.asList("x", "y"), params.get("bbb.ddd", List.class));
+        
+        Path jsonPath = getOutPath().resolve("loader.json");
+        Files.write(jsonPath, Arrays.asList("{\"aaa\": 1, \"bbb\": {\"ccc\": \"foo\"}}"));
+        
+        BasicConfig config = new BasicConfig(jsonPath.toUri().toURL(), new ParametersLoader().flatten(true));
+        Assert.assertEquals("foo", config.getParameter("bbb.ccc", String.class));
+    }  
+
+    @Test
+    public void testLazyLoader() throws Exception {
+        
+        Path yamlPath = getOutPath().resolve("lazy.yaml");
+        Files.write(yamlPath, Arrays.asList(
+                "aaa: 1", 
+                "bbb:", 
+                "  ccc: foo", 
+                "  ddd: [x, y]", 
+                "# comment",
+                "eee: \"qu\u00f6ted, v\u00e4lue \ud83d\ude00\"", 
+                "fff: |", 
+                "  line one", 
+                "  line two", 
+                "ggg:",
+                "  - 1",
+                "  - 2",
+                "hhh:"));
+        
+        ParametersLoader loader = new ParametersLoader().lazy(true);
+        Parameters params = loader.load(yamlPath.toUri().toURL());
+        Assert.assertEquals(5, loader.getEntryCount());
+        Assert.assertEquals(0, loader.getResolvedCount());
+        Assert.assertEquals(Arrays.asList("aaa", "bbb", "eee", "fff", "ggg"), params.keys());
+        
+        Assert.assertEquals(1, params.getInt("aaa", 0));
+        Assert.assertEquals(1, loader.getResolvedCount());
+        Assert.assertEquals("qu\u00f6ted, v\u00e4lue \ud83d\ude00", params.get("eee", String.class));
+        Assert.assertEquals(Arrays.asList("x", "y"), params.get("bbb", Map.class).get("ddd"));
+        
+        Parameters eager = new ParametersLoader().load(yamlPath.toUri().toURL());
+        Assert.assertEquals(eager, params);
+        Assert.assertEquals(eager.toString(), params.toString());
+        Assert.assertEquals(5, loader.getResolvedCount());
+        
+        Path jsonPath = getOutPath().resolve("lazy.json");
+        Files.write(jsonPath, Arrays.asList("{\"aaa\": 1, \"bbb\": {\"ccc\": [\"\u00e4\", 2]}, \"ddd\": \"foo\"}"));
+        
+        loader = new ParametersLoader().lazy(true);
+        BasicConfig config = new BasicConfig(jsonPath.toUri().toURL(), loader);
+        config.putParameter("eee", "bar");
+        config.putParameter("aaa", 2);
+        Assert.assertEquals("foo", config.getParameter("ddd", String.class));
+        Assert.assertEquals(2, config.getInt("aaa", 0));
+        Assert.assertEquals(Arrays.asList("aaa", "bbb", "ddd", "eee"), config.getParameterNames());
+        
+        // Only the overwritten and the requested values are parsed
+        Assert.assertEquals(2, loader.getResolvedCount());
+        
+        // The modifiable copy does not parse values or change the config
+        Parameters copy = config.getParameters();
+        Assert.assertFalse(copy.isImmutable());
+        copy.put("ddd", "changed");
+        Assert.assertEquals("foo", config.getParameter("ddd", String.class));
+        Assert.assertSame(config.getSnapshot(), config.getSnapshot());
+        Assert.assertEquals(2, loader.getResolvedCount());
+        Assert.assertEquals("{aaa=2, bbb={ccc=[\u00e4, 2]}, ddd=foo, eee=bar}", config.toString());
+    }  
+
+    @Test
+    public void testSnapshot() throws Exception {
+        
+        Path yamlPath = getOutPath().resolve("snapshot.yaml");
+        Path snapshotPath = getOutPath().resolve("snapshot.bin");
+        Files.deleteIfExists(snapshotPath);
+        
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            lines.add(String.format("key%04d: {name: value%d, port: %d, ratio: %d.5, enabled: %b, tags: [a, b]}", i, i, 8000 + i, i, i % 2 == 0));
+        }
+        lines.add("big: 12345678901234");
+        lines.add("text: \"h\u00e9llo\"");
+        Files.write(yamlPath, lines);
+        
+        // Writing the snapshot parses all values, also for a lazy loader
+        ParametersLoader loader = new ParametersLoader().lazy(true).snapshot(snapshotPath);
+        Parameters expected = loader.load(yamlPath.toUri().toURL());
+        Assert.assertTrue(Files.exists(snapshotPath));
+        Assert.assertTrue(loader.isLazy());
+        Assert.assertEquals(22, loader.getResolvedCount());
+        Assert.assertEquals(new ParametersLoader().load(yamlPath.toUri().toURL()), expected);
+        
+        loader = new ParametersLoader().snapshot(snapshotPath);
+        Parameters params = loader.load(yamlPath.toUri().toURL());
+        Assert.assertEquals(22, loader.getEntryCount());
+        Assert.assertEquals(0, loader.getResolvedCount());
+        Assert.assertEquals(expected.keys(), params.keys());
+        
+        Assert.assertEquals(12345678901234L, params.getLong("big", 0));
+        Assert.assertEquals("h\u00e9llo", params.get("text", String.class));
+        Assert.assertEquals(2, loader.getResolvedCount());
+        Assert.assertEquals(expected.toString(), params.toString());
+        
+        // A changed document replaces the snapshot
+        lines.set(0, "key0000: changed");
+        Files.write(yamlPath, lines);
+        loader = new ParametersLoader().snapshot(snapshotPath);
+        params = loader.load(yamlPath.toUri().toURL());
+        Assert.assertEquals("changed", params.get("key0000", String.class));
+        
+        loader = new ParametersLoader().snapshot(snapshotPath);
+        params = loader.load(yamlPath.toUri().toURL());
+        Assert.assertEquals(0, loader.getResolvedCount());
+        Assert.assertEquals("changed", params.get("key0000", String.class));
+    }  
 }
@@ -0,0 +1,332 @@
+package io.nessus.test.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.nessus.common.Config;
+import io.nessus.common.testing.AbstractTest;
+import io.nessus.common.utils.HttpHostLimiter;
+import io.nessus.common.utils.HttpHostLimiter.HostStats;
+import io.nessus.common.utils.HttpRequest;
+import io.nessus.common.utils.HttpRequest.HttpResponse;
+import io.nessus.common.utils.StreamUtils;
+
+public class HttpRequestTest extends AbstractTest<Config> {
+
+    static {
+        // Avoid delayed ACK stalls on kept alive connections to the stub server
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static final int LARGE_SIZE = 4 * 1000 * 1000;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Set<Integer> ports = ConcurrentHashMap.newKeySet();
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private String baseUrl;
+
+    @Override
+    public void before() throws Exception {
+        super.before();
+        serverExecutor = Executors.newFixedThreadPool(16);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/hello", ex -> respond(ex, 200, "Hello " + ex.getRequestMethod()));
+        server.createContext("/echo", ex -> {
+            try (InputStream in = ex.getRequestBody()) {
+                respond(ex, 200, new String(StreamUtils.toBytes(in), StandardCharsets.UTF_8));
+            }
+        });
+        server.createContext("/conn", ex -> {
+            ports.add(ex.getRemoteAddress().getPort());
+            respond(ex, 200, "Connected");
+        });
+        server.createContext("/latin", ex -> {
+            byte[] bytes = "Gr\u00fc\u00dfe".getBytes(StandardCharsets.ISO_8859_1);
+            ex.getResponseHeaders().add("Content-Type", "text/plain; charset=\"ISO-8859-1\"");
+            ex.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.createContext("/large", ex -> {
+            ex.sendResponseHeaders(200, LARGE_SIZE);
+            byte[] chunk = new byte[1000];
+            try (OutputStream out = ex.getResponseBody()) {
+                for (int i = 0; i < LARGE_SIZE / chunk.length; i++) {
+                    Arrays.fill(chunk, (byte) i);
+                    out.write(chunk);
+                }
+            }
+        });
+        server.createContext("/slow", ex -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(ex, 200, "Slow");
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void after() throws Exception {
+        release.countDown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        super.after();
+    }
+
+    @Test
+    public void testGetResponse() throws Exception {
+
+        HttpResponse response = HttpRequest.get(baseUrl + "/hello").getResponse();
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("Hello GET", response.getBody());
+
+        response = HttpRequest.post(baseUrl + "/echo").content("some content").getResponse();
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertEquals("some content", response.getBody());
+
+        response = HttpRequest.get(baseUrl + "/missing").getResponse();
+        Assert.assertEquals(404, response.getStatusCode());
+    }
+
+    @Test
+    public void testGetResponseAsync() throws Exception {
+
+        List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(HttpRequest.get(baseUrl + "/hello").getResponseAsync());
+        }
+        for (CompletableFuture<HttpResponse> future : futures) {
+            HttpResponse response = future.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("Hello GET", response.getBody());
+        }
+
+        // A custom executor runs the request
+        AtomicInteger executed = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Executor counting = task -> {
+                executed.incrementAndGet();
+                executor.execute(task);
+            };
+            HttpResponse response = HttpRequest.get(baseUrl + "/hello").executor(counting).getResponseAsync().get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("Hello GET", response.getBody());
+            Assert.assertEquals(1, executed.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+
+        long start = System.nanoTime();
+        try {
+            HttpRequest.get(baseUrl + "/slow").timeout(200).getResponse();
+            Assert.fail("TimeoutException expected");
+        } catch (TimeoutException ex) {
+            // expected
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+
+        CompletableFuture<HttpResponse> future = HttpRequest.get(baseUrl + "/slow").timeout(200, TimeUnit.MILLISECONDS).getResponseAsync();
+        AtomicReference<String> thread = new AtomicReference<>();
+        CompletableFuture<HttpResponse> stage = future.whenComplete((r, th) -> thread.set(Thread.currentThread().getName()));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("ExecutionException expected");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        
+        // Dependent stages do not run on the timer thread
+        stage.handle((r, th) -> null).get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(thread.get(), thread.get().startsWith("HttpRequest-Timeout-"));
+    }
+
+    @Test
+    public void testManyRequests() throws Exception {
+
+        int count = 2000;
+        Semaphore inflight = new Semaphore(32);
+        CountDownLatch done = new CountDownLatch(count);
+        List<Throwable> failures = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            inflight.acquire();
+            HttpRequest.get(baseUrl + "/hello").getResponseAsync().whenComplete((response, th) -> {
+                if (th == null && response.getStatusCode() != 200)
+                    th = new IllegalStateException("Unexpected status: " + response.getStatusCode());
+                if (th != null) {
+                    synchronized (failures) {
+                        failures.add(th);
+                    }
+                }
+                inflight.release();
+                done.countDown();
+            });
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertTrue("Failures: " + failures, failures.isEmpty());
+        logInfo("{} requests in {}ms", count, millis);
+    }
+
+    @Test
+    public void testHostLimiter() throws Exception {
+
+        HttpHostLimiter limiter = new HttpHostLimiter().maxConcurrent(2);
+        String url = baseUrl + "/conn";
+
+        int count = 50;
+        for (int i = 0; i < count; i++) {
+            HttpResponse response = HttpRequest.get(url).limiter(limiter).getResponse();
+            Assert.assertEquals("Connected", response.getBody());
+        }
+
+        // Bodies are read to the end, so the keep-alive cache reuses the connection
+        Assert.assertEquals(1, ports.size());
+
+        HostStats stats = limiter.getStats(new URL(url));
+        Assert.assertEquals(count, stats.getGrantedCount());
+        Assert.assertEquals(0, stats.getActive());
+        Assert.assertEquals(0, stats.getWaiting());
+        Assert.assertEquals(1, limiter.getStats().size());
+    }
+
+    @Test
+    public void testHostLimiterWait() throws Exception {
+
+        HttpHostLimiter limiter = new HttpHostLimiter().maxConcurrent(1);
+        String url = baseUrl + "/slow";
+
+        CompletableFuture<HttpResponse> first = HttpRequest.get(url).limiter(limiter).getResponseAsync();
+        Assert.assertEquals(1, limiter.getStats(new URL(url)).getActive());
+
+        // The second request gives up waiting for a permit
+        try {
+            HttpRequest.get(url).limiter(limiter).timeout(200).getResponse();
+            Assert.fail("TimeoutException expected");
+        } catch (TimeoutException ex) {
+            // expected
+        }
+
+        // The third request waits and runs after the first
+        CompletableFuture<HttpResponse> third = HttpRequest.get(url).limiter(limiter).getResponseAsync();
+        HostStats stats = limiter.getStats(new URL(url));
+        Assert.assertEquals(1, stats.getWaiting());
+        Assert.assertEquals(1, stats.getCancelledCount());
+
+        release.countDown();
+        Assert.assertEquals("Slow", first.get(10, TimeUnit.SECONDS).getBody());
+        Assert.assertEquals("Slow", third.get(10, TimeUnit.SECONDS).getBody());
+
+        stats = limiter.getStats(new URL(url));
+        Assert.assertEquals(2, stats.getGrantedCount());
+        Assert.assertEquals(0, stats.getActive());
+        Assert.assertEquals(0, stats.getWaiting());
+    }
+
+    @Test
+    public void testResponseBody() throws Exception {
+
+        HttpResponse response = HttpRequest.get(baseUrl + "/latin").getResponse();
+        Assert.assertEquals(StandardCharsets.ISO_8859_1, response.getCharset());
+        Assert.assertEquals("Gr\u00fc\u00dfe", response.getBody());
+        Assert.assertEquals(5, response.getBodyBytes().length);
+
+        ByteBuffer buffer = response.getBodyBuffer();
+        Assert.assertTrue(buffer.isReadOnly());
+        Assert.assertEquals(5, buffer.remaining());
+
+        // Without a charset the body is UTF-8
+        response = HttpRequest.post(baseUrl + "/echo").content("Gr\u00fc\u00dfe").getResponse();
+        Assert.assertEquals(StandardCharsets.UTF_8, response.getCharset());
+        Assert.assertEquals("Gr\u00fc\u00dfe", response.getBody());
+
+        long start = System.nanoTime();
+        response = HttpRequest.get(baseUrl + "/large").getResponse();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(LARGE_SIZE, response.getBodyBytes().length);
+        logInfo("Read {} bytes in {}ms", LARGE_SIZE, millis);
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+
+        HttpHostLimiter limiter = new HttpHostLimiter();
+        String url = baseUrl + "/large";
+
+        HttpResponse response = HttpRequest.get(url).limiter(limiter).streaming(true).getResponse();
+        Assert.assertNull(response.getBody());
+        Assert.assertEquals(1, limiter.getStats(new URL(url)).getActive());
+
+        long total = 0;
+        try (InputStream in = response.getBodyStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        Assert.assertEquals(LARGE_SIZE, total);
+
+        // Closing the stream releases the permit
+        Assert.assertEquals(0, limiter.getStats(new URL(url)).getActive());
+
+        // Chunks are passed to the handler
+        AtomicLong chunked = new AtomicLong();
+        response = HttpRequest.get(url).limiter(limiter).chunkHandler(chunk -> {
+            Assert.assertTrue(chunk.remaining() > 0);
+            chunked.addAndGet(chunk.remaining());
+        }).getResponse();
+        Assert.assertEquals(200, response.getStatusCode());
+        Assert.assertNull(response.getBodyBytes());
+        Assert.assertEquals(LARGE_SIZE, chunked.get());
+        Assert.assertEquals(0, limiter.getStats(new URL(url)).getActive());
+    }
+
+    private static void respond(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -1,10 +1,45 @@
 package io.nessus.test.common;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.nessus.common.BasicConfig;
+import io.nessus.common.Parameters;
+import io.nessus.common.service.AsyncLogService;
+import io.nessus.common.service.AsyncLogService.OverflowPolicy;
+import io.nessus.common.service.BasicLogService;
+import io.nessus.common.service.JsonLogService;
+import io.nessus.common.service.LogMetrics;
+import io.nessus.common.service.LogService;
+import io.nessus.common.service.LogSink;
+import io.nessus.common.service.RateLimitingLogService;
 import io.nessus.common.testing.AbstractTest;
 
 public class LogServiceTest extends AbstractTest<BasicConfig> {
@@ -21,4 +56,384 @@ public class LogServiceTest extends AbstractTest<BasicConfig> {
     	
     	LOG.info("{}", new RuntimeException("hello"));
     }  
+
+    @Test
+    public void testLazyArguments() throws Exception {
+
+        AtomicInteger evaluated = new AtomicInteger();
+        Supplier<Object> arg = () -> evaluated.incrementAndGet();
+
+        logTraceLazy("trace {}", arg);
+        logTrace(() -> "trace " + arg.get());
+        Assert.assertEquals(isEnabled(Level.TRACE) ? 2 : 0, evaluated.get());
+
+        evaluated.set(0);
+        logDebugLazy("debug {}", arg);
+        logDebug(() -> "debug " + arg.get());
+        Assert.assertEquals(isEnabled(Level.DEBUG) ? 2 : 0, evaluated.get());
+        
+        // A null argument is not taken for a supplier
+        logDebug("debug {}", null);
+        logDebugLazy("debug {}", (Supplier<?>) null);
+        logDebugLazy("debug {}", (Supplier<?>[]) null);
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+
+        Assert.assertEquals("plain", BasicLogService.format("plain"));
+        Assert.assertEquals("a=1, b=null", BasicLogService.format("a={}, b={}", 1, null));
+        Assert.assertEquals("100% of {}", BasicLogService.format("{}% of {}", 100));
+        Assert.assertEquals("x y", BasicLogService.format("{} {}", "x", "y", "z"));
+        Assert.assertEquals("{}", BasicLogService.format("{}"));
+        Assert.assertEquals("{}x{}", BasicLogService.format("{}{}{}", "{}", "x"));
+
+        // Compare with the previous implementation across argument counts
+        for (int argc = 1; argc <= 8; argc++) {
+            Object[] args = new Object[argc];
+            StringBuilder template = new StringBuilder("prefix");
+            for (int i = 0; i < argc; i++) {
+                args[i] = i % 2 == 0 ? "arg" + i : Integer.valueOf(i);
+                template.append(" {} 5%");
+            }
+            String msg = template.toString();
+            Assert.assertEquals(legacyFormat(msg, args), BasicLogService.format(msg, args));
+        }
+    }
+
+    private static String legacyFormat(String msg, Object... args) {
+        msg = msg.replace("%", "%%");
+        msg = msg.replace("{}", "%s");
+        return String.format(msg, args);
+    }
+
+    @Test
+    public void testRateLimiting() throws Exception {
+
+        List<String> written = new ArrayList<>();
+        LogService recording = new BasicLogService() {
+            @Override
+            public void log(Logger log, Level level, Throwable th, String msg, Object... args) {
+                written.add(format(msg, args));
+            }
+            @Override
+            public void logWarn(Logger log, String msg, Object... args) {
+                log(log, Level.WARN, null, msg, args);
+            }
+        };
+
+        RateLimitingLogService logService = new RateLimitingLogService(recording, 3, 0.001, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 10; i++) {
+            logService.logError(LOG, "downstream failed: {}", i);
+            logService.logInfo(LOG, "other {}", i);
+        }
+        Assert.assertEquals(Arrays.asList(
+                "downstream failed: 0", "other 0", 
+                "downstream failed: 1", "other 1", 
+                "downstream failed: 2", "other 2"), written);
+        Assert.assertEquals(14, logService.getSuppressedCount());
+
+        // The summary is written on close
+        written.clear();
+        logService.close();
+        Collections.sort(written);
+        Assert.assertEquals(Arrays.asList(
+                "Suppressed 7 messages like: downstream failed: {}", 
+                "Suppressed 7 messages like: other {}"), written);
+        Assert.assertEquals(0, logService.getSuppressedCount());
+    }
+
+    @Test
+    public void testRateLimitedTraces() throws Exception {
+
+        List<String> written = new ArrayList<>();
+        List<Throwable> traces = new ArrayList<>();
+        LogService recording = new BasicLogService() {
+            @Override
+            public void log(Logger log, Level level, Throwable th, String msg, Object... args) {
+                written.add(format(msg, args));
+                if (th != null) traces.add(th);
+            }
+        };
+
+        // Beyond the burst, identical stack traces are written once
+        RateLimitingLogService logService = new RateLimitingLogService(recording, 2, 1000, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(10);
+            logService.log(LOG, Level.ERROR, newException(), "call {}", i);
+        }
+        Assert.assertEquals(4, written.size());
+        Assert.assertEquals(2, traces.size());
+        Assert.assertEquals("call 2 [java.lang.IllegalStateException: boom, stack trace omitted]", written.get(2));
+        Assert.assertEquals("call 3 [java.lang.IllegalStateException: boom, stack trace omitted]", written.get(3));
+    }
+
+    @Test
+    public void testRateLimitedTracesLogged() throws Exception {
+
+        List<LoggingEvent> events = new ArrayList<>();
+        org.apache.log4j.Logger target = org.apache.log4j.Logger.getLogger(LogServiceTest.class.getName() + ".traces");
+        AppenderSkeleton appender = new AppenderSkeleton() {
+            @Override
+            protected void append(LoggingEvent event) {
+                events.add(event);
+            }
+            @Override
+            public boolean requiresLayout() {
+                return false;
+            }
+            @Override
+            public void close() {
+            }
+        };
+        target.addAppender(appender);
+        target.setAdditivity(false);
+        try {
+            Logger log = LoggerFactory.getLogger(target.getName());
+            RateLimitingLogService logService = new RateLimitingLogService(new BasicLogService(), 2, 1000, 1, TimeUnit.HOURS);
+            for (int i = 0; i < 4; i++) {
+                Thread.sleep(10);
+                logService.log(log, Level.ERROR, newException(), "call {}", i);
+            }
+            Assert.assertEquals(4, events.size());
+            Assert.assertNotNull(events.get(1).getThrowableInformation());
+            Assert.assertEquals("call 2 [java.lang.IllegalStateException: boom, stack trace omitted]", events.get(2).getRenderedMessage());
+            Assert.assertNull(events.get(2).getThrowableInformation());
+            Assert.assertNull(events.get(3).getThrowableInformation());
+        } finally {
+            target.removeAppender(appender);
+            target.setAdditivity(true);
+        }
+    }
+
+    private static Exception newException() {
+        return new IllegalStateException("boom");
+    }
+
+    @Test
+    public void testJson() throws Exception {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JsonLogService logService = new JsonLogService(baos);
+        logService.logInfo(LOG, "Hello {} from {}", "world", 42);
+        logService.logError(LOG, new IllegalStateException("boom", new RuntimeException("cause")), "failed");
+
+        String[] lines = baos.toString("UTF-8").split("\n");
+        Assert.assertEquals(2, lines.length);
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode info = mapper.readTree(lines[0]);
+        Assert.assertEquals("INFO", info.get("level").asText());
+        Assert.assertEquals(LogServiceTest.class.getName(), info.get("logger").asText());
+        Assert.assertEquals("Hello {} from {}", info.get("template").asText());
+        Assert.assertEquals("world", info.get("args").get(0).asText());
+        Assert.assertEquals(42, info.get("args").get(1).asInt());
+        Assert.assertEquals(Thread.currentThread().getName(), info.get("thread").asText());
+        Assert.assertTrue(info.get("timestamp").asLong() > 0);
+
+        JsonNode error = mapper.readTree(lines[1]);
+        Assert.assertEquals("ERROR", error.get("level").asText());
+        Assert.assertEquals("boom", error.get("exception").get("message").asText());
+        Assert.assertEquals("cause", error.get("exception").get("cause").get("message").asText());
+        Assert.assertTrue(error.get("exception").get("stack").size() > 0);
+    }
+
+    @Test
+    public void testLogSink() throws Exception {
+
+        BasicLogService logService = new BasicLogService();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            ExecutorService executor = LogSink.wrap(pool);
+            try (LogSink.Scope scope = LogSink.open(new PrintStream(baos, true))) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    int id = i;
+                    futures.add(executor.submit(() -> logService.logInfo(LOG, "task {}", id)));
+                }
+                for (Future<?> fut : futures) {
+                    fut.get();
+                }
+                
+                // Buffered until the scope is closed
+                Assert.assertEquals(0, baos.size());
+            }
+            
+            String[] lines = baos.toString().split("\\R");
+            Assert.assertEquals(100, lines.length);
+            Assert.assertNull(LogSink.current());
+            
+            // Pooled threads do not keep the sink
+            Assert.assertNull(pool.submit(() -> LogSink.current()).get());
+            Assert.assertNull(LogService.getPrintStream());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSetPrintStream() throws Exception {
+
+        ByteArrayOutputStream outer = new ByteArrayOutputStream();
+        ByteArrayOutputStream inner = new ByteArrayOutputStream();
+        PrintStream outerStream = new PrintStream(outer, true);
+        try (LogSink.Scope scope = LogSink.open(outerStream)) {
+            PrintStream prev = LogService.setPrintStream(new PrintStream(inner, true));
+            Assert.assertSame(outerStream, prev);
+            LogService.getPrintStream().println("inner");
+            
+            // Setting the previous stream restores the buffered sink
+            LogService.setPrintStream(prev);
+            Assert.assertSame(scope.getSink(), LogSink.current());
+            LogService.getPrintStream().println("outer");
+            Assert.assertEquals(0, outer.size());
+        }
+        Assert.assertEquals("inner", inner.toString().trim());
+        Assert.assertEquals("outer", outer.toString().trim());
+        Assert.assertNull(LogSink.current());
+
+        // A binding without an enclosing sink is removed again
+        Assert.assertNull(LogService.setPrintStream(new PrintStream(inner, true)));
+        Assert.assertNotNull(LogSink.current());
+        LogService.setPrintStream(null);
+        Assert.assertNull(LogSink.current());
+    }
+
+    @Test
+    public void testSinkCharset() throws Exception {
+
+        Charset charset = Charset.defaultCharset();
+        String text = new String("gr\u00fc\u00dfe \u20ac".getBytes(charset), charset);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (LogSink.Scope scope = LogSink.open(new PrintStream(baos, true))) {
+            
+            // Characters that are split across writes are decoded as a whole
+            PrintStream out = scope.getSink().getPrintStream();
+            for (byte b : text.getBytes(charset)) {
+                out.write(b);
+            }
+        }
+        Assert.assertEquals(text, new String(baos.toByteArray(), charset));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        AsyncLogService logService = new AsyncLogService();
+        logService.init(config);
+
+        int threads = 8;
+        int count = 1000;
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                outputs.add(baos);
+                int id = i;
+                futures.add(executor.submit(() -> {
+                    PrintStream prev = LogService.setPrintStream(new PrintStream(baos, true));
+                    try {
+                        for (int j = 0; j < count; j++) {
+                            logService.logWarn(LOG, "thread {} message {}", id, j);
+                        }
+                    } finally {
+                        LogService.setPrintStream(prev);
+                    }
+                }));
+            }
+            for (Future<?> fut : futures) {
+                fut.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertTrue(logService.flush(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, logService.getQueueDepth());
+        Assert.assertEquals(0, logService.getDroppedCount());
+
+        // Each thread's output went to its own stream, in order
+        for (int i = 0; i < threads; i++) {
+            String[] lines = outputs.get(i).toString().split("\\R");
+            Assert.assertEquals(count, lines.length);
+            Assert.assertEquals("thread " + i + " message 0", lines[0]);
+            Assert.assertEquals("thread " + i + " message " + (count - 1), lines[count - 1]);
+        }
+        logService.close();
+    }
+
+    @Test
+    public void testAsyncOverflow() throws Exception {
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> written = new ArrayList<>();
+        LogService blocking = new BasicLogService() {
+            @Override
+            public void log(Logger log, Level level, Throwable th, String msg, Object... args) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                written.add(format(msg, args));
+            }
+        };
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        AsyncLogService logService = new AsyncLogService(blocking, 4, OverflowPolicy.DROP);
+        logService.init(config);
+
+        for (int i = 0; i < 20; i++) {
+            logService.logInfo(LOG, "message {}", i);
+        }
+        Assert.assertTrue(logService.getDroppedCount() >= 20 - 4 - 1);
+        Assert.assertTrue(logService.getQueueDepth() <= 4);
+
+        release.countDown();
+        logService.close();
+        Assert.assertEquals(20 - logService.getDroppedCount(), written.size());
+        Assert.assertEquals(Arrays.asList("message 0"), written.subList(0, 1));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+
+        LogMetrics metrics = new LogMetrics();
+        LogService logService = new BasicLogService(metrics);
+        try (LogSink.Scope scope = LogSink.openUnbuffered(new PrintStream(new ByteArrayOutputStream()))) {
+            logService.logInfo(LOG, "info {}", 1);
+            logService.logWarn(LOG, "warn {}", 2);
+            logService.logError(LOG, new RuntimeException("boom"), "error");
+            logService.log(LOG, Level.INFO, null, "info {}", 3);
+        }
+
+        Assert.assertEquals(2, metrics.getEventCount(Level.INFO));
+        Assert.assertEquals(1, metrics.getEventCount(Level.WARN));
+        Assert.assertEquals(1, metrics.getEventCount(Level.ERROR));
+        Assert.assertEquals(4, metrics.getEventCount(LOG.getName()));
+        Assert.assertEquals(4, metrics.getFormatCount());
+        Assert.assertEquals(4, metrics.getWriteCount());
+        Assert.assertTrue(metrics.getWriteP99Nanos() > 0);
+
+        LogMetrics.LatencyHistogram histogram = metrics.getWriteLatency();
+        Assert.assertEquals(4, Arrays.stream(histogram.getBuckets()).sum());
+        Assert.assertTrue(histogram.getPercentile(50) <= histogram.getPercentile(100));
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getWriteCount());
+        Assert.assertTrue(metrics.getLoggerCounts().isEmpty());
+
+        // The default instance is visible through JMX
+        LogMetrics defaultMetrics = LogMetrics.getDefault();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName oname = new ObjectName(LogMetrics.OBJECT_NAME);
+        Assert.assertTrue(server.isRegistered(oname));
+        Long value = (Long) server.getAttribute(oname, "WriteCount");
+        Assert.assertTrue(value <= defaultMetrics.getWriteCount());
+        LOG.debug("Log metrics: {}", server.getAttribute(oname, "LevelCounts"));
+    }
 }
@@ -1,15 +1,28 @@
 package io.nessus.test.common;
 
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
+import io.nessus.common.ParameterKey;
 import io.nessus.common.Parameters;
 
 public class ParametersTest {
 
+    @After
+    public void after() {
+        Parameters.unregisterDeserializer(Shape.class);
+    }
+
     @Test
     public void testParser() {
 
@@ -75,4 +88,248 @@ public class ParametersTest {
         List<String> lstB = parB.get("aux", List.class);
         Assert.assertEquals(lstA, lstB);
     }
+
+    @Test
+    public void testParameterKey() {
+
+        ParameterKey<Integer> keyA = ParameterKey.of("aaa", Integer.class);
+        ParameterKey<Integer> keyB = ParameterKey.of("bbb", Integer.class);
+        
+        Parameters params = Parameters.fromString("{aaa=50, ccc=[x, y]}");
+        Integer valA = params.get(keyA);
+        Assert.assertEquals(Integer.valueOf(50), valA);
+        
+        // A value outside the Integer cache is only the same instance if it was cached
+        params.put("aaa", "5000");
+        valA = params.get(keyA);
+        Assert.assertEquals(Integer.valueOf(5000), valA);
+        Assert.assertSame(valA, params.get(keyA));
+        Assert.assertNull(params.get(keyB));
+        Assert.assertEquals(Integer.valueOf(5), params.get(keyB, 5));
+        
+        params.put("aaa", "60");
+        params.put("bbb", "6");
+        Assert.assertEquals(Integer.valueOf(60), params.get(keyA));
+        Assert.assertEquals(Integer.valueOf(6), params.get(keyB));
+        
+        params.remove("aaa");
+        Assert.assertNull(params.get(keyA));
+        
+        ParameterKey<String[]> keyC = ParameterKey.of("ccc", String[].class);
+        String[] valC = params.get(keyC);
+        Assert.assertArrayEquals(new String[] {"x", "y"}, valC);
+        
+        // A modified array does not change the cached value
+        valC[0] = "z";
+        Assert.assertArrayEquals(new String[] {"x", "y"}, params.get(keyC));
+    }
+
+    @Test
+    public void testPrimitives() {
+
+        Parameters params = Parameters.fromString("{aaa=50, bbb=12.5%, ccc=1, ddd=abc, eee=}");
+        params.put("fff", 7L);
+        
+        Assert.assertEquals(50, params.getInt("aaa", 0));
+        Assert.assertEquals(50L, params.getLong("aaa", 0L));
+        Assert.assertEquals(50.0, params.getDouble("aaa", 0.0), 0);
+        Assert.assertEquals(0.125, params.getDouble("bbb", 0.0), 0);
+        Assert.assertTrue(params.getBoolean("ccc", false));
+        Assert.assertFalse(params.getBoolean("ddd", true));
+        Assert.assertEquals(7, params.getInt("fff", 0));
+        
+        Assert.assertEquals(3, params.getInt("eee", 3));
+        Assert.assertEquals(4, params.getInt("xxx", 4));
+        Assert.assertTrue(params.getBoolean("xxx", true));
+        
+        try {
+            params.getInt("ddd", 0);
+            Assert.fail("NumberFormatException expected");
+        } catch (NumberFormatException ex) {
+            // expected
+        }
+        
+        params.put("aaa", 60);
+        Assert.assertEquals(60, params.getInt("aaa", 0));
+        
+        // The unboxed and boxed forms use the same conversion
+        params.put("ggg", new BigDecimal("5000000000"));
+        Assert.assertEquals(Long.valueOf(5000000000L), params.get("ggg", Long.class));
+        Assert.assertEquals(5000000000L, params.getLong("ggg", 0L));
+        params.put("ggg", new BigDecimal("42"));
+        Assert.assertEquals(Integer.valueOf(42), params.get("ggg", Integer.class));
+        Assert.assertEquals(42, params.getInt("ggg", 0));
+        params.put("ggg", new BigDecimal("4.2"));
+        try {
+            params.getLong("ggg", 0L);
+            Assert.fail("NumberFormatException expected");
+        } catch (NumberFormatException ex) {
+            // expected, as for the boxed type
+        }
+    }
+
+    @Test
+    public void testParserSyntax() throws Exception {
+
+        Parameters params = Parameters.fromString("{ aaa = 1 , bbb=\"x, [y]\", ccc=a\\,b, ddd=[x, [y, z], []], eee=[]}");
+        Assert.assertEquals("1", params.get("aaa", String.class));
+        Assert.assertEquals("x, [y]", params.get("bbb", String.class));
+        Assert.assertEquals("a,b", params.get("ccc", String.class));
+        Assert.assertEquals(Arrays.asList("x", Arrays.asList("y", "z"), Arrays.asList()), params.get("ddd", List.class));
+        Assert.assertEquals(Arrays.asList(), params.get("eee", List.class));
+        
+        Assert.assertTrue(Parameters.fromString("{}").isEmpty());
+        
+        // Backslashes that do not escape a delimiter are literal
+        params = Parameters.fromString("{path=C:\\dir\\sub, unc=\\\\host\\share, quote=a\\\"b, tail=a\\]b}");
+        Assert.assertEquals("C:\\dir\\sub", params.get("path", String.class));
+        Assert.assertEquals("\\\\host\\share", params.get("unc", String.class));
+        Assert.assertEquals("a\\\"b", params.get("quote", String.class));
+        Assert.assertEquals("a]b", params.get("tail", String.class));
+        
+        // Quotes only have a meaning at the start of a value
+        params = Parameters.fromString("{size=5\" screen, text=\"say \\\"hi\\\", [x]\", tail=\"a\"b\"}");
+        Assert.assertEquals("5\" screen", params.get("size", String.class));
+        Assert.assertEquals("say \"hi\", [x]", params.get("text", String.class));
+        Assert.assertEquals("ab\"", params.get("tail", String.class));
+        
+        // Trailing commas are tolerated
+        params = Parameters.fromString("{aaa=1, bbb=[x, y,], }");
+        Assert.assertEquals("1", params.get("aaa", String.class));
+        Assert.assertEquals(Arrays.asList("x", "y"), params.get("bbb", List.class));
+        
+        for (String spec : Arrays.asList("{aaa}", "{aaa=[x, y}", "{aaa=\"x}", "{aaa=1}}")) {
+            try {
+                Parameters.fromString(spec);
+                Assert.fail("IllegalArgumentException expected for: " + spec);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        
+        // Parse a large spec from a reader
+        
+        int count = 5000;
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("key" + i + "=[a" + i + ", b" + i + "]");
+        }
+        sb.append("}");
+        
+        Parameters parB = Parameters.fromReader(new StringReader(sb.toString()));
+        Assert.assertEquals(count, parB.size());
+        Assert.assertEquals(Arrays.asList("a4999", "b4999"), parB.get("key4999", List.class));
+        Assert.assertEquals(sb.toString(), parB.toString());
+    }
+
+    @Test
+    public void testEquals() {
+
+        Parameters parA = Parameters.fromString("{aaa=50, bbb=[x, y], ccc=foo}");
+        Parameters parB = new Parameters();
+        parB.put("ccc", "foo");
+        parB.put("bbb", Arrays.asList("x", "y"));
+        parB.put("aaa", 50);
+        
+        Assert.assertEquals(parA, parB);
+        Assert.assertEquals(parA.hashCode(), parB.hashCode());
+        
+        // The cached hash follows mutations
+        
+        parB.put("ddd", 1);
+        Assert.assertNotEquals(parA, parB);
+        Assert.assertEquals(new Parameters(parB).hashCode(), parB.hashCode());
+        
+        parB.remove("ddd");
+        parB.put("aaa", "50");
+        Assert.assertEquals(parA, parB);
+        Assert.assertEquals(parA.hashCode(), parB.hashCode());
+        
+        parB.put("aaa", 51);
+        Assert.assertNotEquals(parA, parB);
+        Assert.assertEquals(new Parameters(parB).hashCode(), parB.hashCode());
+        
+        // Typed values equal their string form without rendering it
+        
+        Parameters parC = Parameters.fromString("{aaa=50, bbb=12.5, ccc=true, ddd=[1, 2], eee=050}");
+        Parameters parD = new Parameters();
+        parD.put("aaa", 50L);
+        parD.put("bbb", 12.5);
+        parD.put("ccc", Boolean.TRUE);
+        parD.put("ddd", new int[] {1, 2});
+        parD.put("eee", "050");
+        Assert.assertEquals(parC, parD);
+        Assert.assertEquals(parC.hashCode(), parD.hashCode());
+        
+        parD.put("eee", 50);
+        Assert.assertNotEquals(parC, parD);
+        
+        // Numbers are compared by their string form, also in the hash
+        
+        Parameters parE = Parameters.fromString("{aaa=-0.0, bbb=12.50, ccc=1.0E10}");
+        Parameters parF = new Parameters();
+        parF.put("aaa", -0.0);
+        parF.put("bbb", new BigDecimal("12.50"));
+        parF.put("ccc", 1.0E10);
+        Assert.assertEquals(parE, parF);
+        Assert.assertEquals(parE.hashCode(), parF.hashCode());
+        
+        parF.put("aaa", 0.0);
+        Assert.assertNotEquals(parE, parF);
+        parF.put("aaa", "-0.0");
+        parF.put("bbb", new BigDecimal("12.5"));
+        Assert.assertNotEquals(parE, parF);
+        parF.put("bbb", 12.5);
+        Assert.assertNotEquals(parE, parF);
+        
+        parB.clear();
+        Assert.assertEquals(new Parameters(), parB);
+        Assert.assertEquals(0, parB.hashCode());
+    }
+
+    @Test
+    public void testDeserializers() {
+
+        Parameters params = Parameters.fromString("{unit=SECONDS, timeout=1500ms, iso=PT2M, addr=localhost:8080, date=2020-07-01, shape=circle}");
+        Assert.assertEquals(TimeUnit.SECONDS, params.get("unit", TimeUnit.class));
+        Assert.assertEquals(Duration.ofMillis(1500), params.get("timeout", Duration.class));
+        Assert.assertEquals(Duration.ofMinutes(2), params.get("iso", Duration.class));
+        InetSocketAddress addr = params.get("addr", InetSocketAddress.class);
+        Assert.assertEquals(InetSocketAddress.createUnresolved("localhost", 8080), addr);
+        Assert.assertTrue(addr.isUnresolved());
+        Assert.assertEquals(LocalDate.of(2020, 7, 1), params.get("date", LocalDate.class));
+        Assert.assertEquals(Integer.valueOf(50), Parameters.fromString("{aaa=50}").get("aaa", int.class));
+        
+        // Deserializer registered for a supertype
+        
+        Parameters.registerDeserializer(Shape.class, Circle::new);
+        Circle circle = params.get("shape", Circle.class);
+        Assert.assertEquals("circle", circle.name);
+        
+        try {
+            params.get("shape", Thread.class);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        
+        Parameters.unregisterDeserializer(Shape.class);
+        try {
+            params.get("shape", Circle.class);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+    
+    interface Shape {
+    }
+    
+    static class Circle implements Shape {
+        final String name;
+        Circle(String name) {
+            this.name = name;
+        }
+    }
 }
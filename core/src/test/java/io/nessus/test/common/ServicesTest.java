@@ -0,0 +1,544 @@
+package io.nessus.test.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.common.BasicConfig;
+import io.nessus.common.Config;
+import io.nessus.common.Parameters;
+import io.nessus.common.service.BasicLogService;
+import io.nessus.common.service.LogService;
+import io.nessus.common.service.Service;
+import io.nessus.common.service.ServiceInitializer;
+import io.nessus.common.service.ServiceRegistry;
+import io.nessus.common.service.ServiceState;
+import io.nessus.common.testing.AbstractTest;
+
+public class ServicesTest extends AbstractTest<Config> {
+
+    @Test
+    public void testRegistry() throws Exception {
+
+        ServiceRegistry registry = new ServiceRegistry();
+        Assert.assertNull(registry.getService(LogService.class));
+
+        BasicLogService logService = new BasicLogService();
+        registry.addService(logService);
+        Assert.assertSame(logService, registry.getService(LogService.class));
+        Assert.assertSame(logService, registry.getService(BasicLogService.class));
+        Assert.assertSame(logService, registry.getService(Service.class));
+        Assert.assertNull(registry.getService(CacheService.class));
+
+        // The first service wins for a common supertype
+        FooService foo = new FooService();
+        BarService bar = new BarService();
+        registry.addService(foo);
+        registry.addService(bar);
+        Assert.assertSame(foo, registry.getService(CacheService.class));
+        Assert.assertSame(bar, registry.getService(BarService.class));
+
+        // The registered type takes precedence
+        TypedBarService typedBar = new TypedBarService();
+        registry.addService(typedBar);
+        Assert.assertSame(typedBar, registry.getService(CacheService.class));
+        Assert.assertSame(bar, registry.getService(BarService.class));
+
+        // Same type replaces, keeping the order
+        FooService otherFoo = new FooService();
+        registry.addService(otherFoo);
+        Assert.assertSame(otherFoo, registry.getService(FooService.class));
+        Assert.assertEquals(4, registry.getServices().size());
+        Assert.assertSame(otherFoo, registry.getServices().get(1));
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        config.addService(new FooService());
+                        Assert.assertNotNull(config.getService(CacheService.class));
+                        Assert.assertNotNull(config.getService(LogService.class));
+                    }
+                }));
+            }
+            for (Future<?> fut : futures) {
+                fut.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertNotNull(config.getService(FooService.class));
+    }
+
+    @Test
+    public void testDependencies() throws Exception {
+
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(2);
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        TrackingService web = new TrackingService("web", events, latch, DbService.class);
+        DbService db = new DbService(events, latch);
+        TrackingService cache = new TrackingService("cache", events, latch);
+        config.addService(web);
+        config.addService(db);
+        config.addService(cache);
+
+        ServiceInitializer initializer = new ServiceInitializer(config, Arrays.asList(web, db, cache)).parallelism(4);
+        initializer.initServices();
+
+        // db and cache wait for each other, so they must have run concurrently
+        Assert.assertEquals(0, latch.getCount());
+        Assert.assertTrue(events.indexOf("init db") < events.indexOf("init web"));
+
+        Assert.assertTrue(initializer.getTime(db, TimeUnit.MILLISECONDS) >= 0);
+
+        events.clear();
+        initializer.closeServices();
+        Assert.assertTrue(events.indexOf("close web") < events.indexOf("close db"));
+        Assert.assertEquals(3, events.size());
+    }
+
+    @Test
+    public void testInsertionOrder() throws Exception {
+
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(new SlowService(events, 50));
+        config.addService(new DbService(events, new CountDownLatch(0)));
+        config.initServices();
+
+        // Without parallelism, services are initialized one after the other
+        Assert.assertEquals(Arrays.asList("init slow", "init db"), events);
+
+        events.clear();
+        config.closeServices();
+        Assert.assertEquals(Arrays.asList("close db", "close slow"), events);
+    }
+
+    @Test
+    public void testParallelism() throws Exception {
+
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(2);
+
+        BasicConfig config = new BasicConfig(Parameters.fromString("{serviceParallelism=4}"));
+        config.addService(new TrackingService("web", events, latch, DbService.class));
+        config.addService(new DbService(events, latch));
+        config.addService(new QueueService(events, latch));
+        config.initServices();
+
+        // db and queue wait for each other, so they must have run concurrently
+        Assert.assertEquals(0, latch.getCount());
+        Assert.assertTrue(events.indexOf("init db") < events.indexOf("init web"));
+        config.closeServices();
+    }
+
+    @Test
+    public void testCloseFailure() throws Exception {
+
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(new DbService(events, new CountDownLatch(0)));
+        config.addService(new FailingCloseService());
+        config.initServices();
+
+        // The other services are still closed
+        try {
+            config.closeServices();
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("close failed", ex.getMessage());
+        }
+        Assert.assertEquals(Arrays.asList("init db", "close db"), events);
+        Assert.assertEquals(ServiceState.CLOSED, config.getServiceState(FailingCloseService.class));
+    }
+
+    @Test
+    public void testDependencyCycle() throws Exception {
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(new CycleA());
+        config.addService(new CycleB());
+        try {
+            config.initServices();
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("Service dependency cycle: CycleA -> CycleB -> CycleA", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testAsyncLifecycle() throws Exception {
+
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> warmup = new CompletableFuture<>();
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(new WarmupService(release));
+        config.addService(new AsyncService(warmup, false));
+        Assert.assertEquals(ServiceState.NEW, config.getServiceState(WarmupService.class));
+
+        // Returns while the non-critical service is still starting
+        config.initServices();
+        Assert.assertEquals(ServiceState.READY, config.getServiceState(LogService.class));
+        Assert.assertNotEquals(ServiceState.READY, config.getServiceState(WarmupService.class));
+        Assert.assertFalse(config.awaitServices(50, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        warmup.complete(null);
+        Assert.assertTrue(config.awaitServices(10, TimeUnit.SECONDS));
+        Assert.assertEquals(ServiceState.READY, config.getServiceState(WarmupService.class));
+        Assert.assertEquals(ServiceState.READY, config.getServiceState(AsyncService.class));
+
+        config.closeServices();
+        Assert.assertEquals(ServiceState.CLOSED, config.getServiceState(WarmupService.class));
+    }
+
+    @Test
+    public void testClosePendingInit() throws Exception {
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        AsyncService pending = new AsyncService(new CompletableFuture<>(), false);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        WarmupService blocked = new WarmupService(new CountDownLatch(1)) {
+            @Override
+            public void init(Config config) {
+                try {
+                    super.init(config);
+                } catch (IllegalStateException ex) {
+                    interrupted.countDown();
+                    throw ex;
+                }
+            }
+        };
+        config.addService(pending);
+        config.addService(blocked);
+
+        ServiceInitializer initializer = new ServiceInitializer(config, Arrays.asList(pending, blocked))
+                .parallelism(2).closeTimeout(100, TimeUnit.MILLISECONDS);
+        initializer.initServices();
+        Assert.assertFalse(initializer.awaitServices(50, TimeUnit.MILLISECONDS));
+
+        // The initializations never complete, so they are cancelled and interrupted
+        initializer.closeServices();
+        Assert.assertEquals(ServiceState.CLOSED, initializer.getState(pending));
+        Assert.assertEquals(ServiceState.CLOSED, initializer.getState(blocked));
+        Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCloseLateLazyService() throws Exception {
+
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(new WarmupService(release) {
+            @Override
+            public void init(Config config) {
+                super.init(config);
+                events.add("init warmup");
+            }
+            @Override
+            public void close() {
+                events.add("close warmup");
+            }
+        });
+        config.addService(DbService.class, () -> new DbService(events, new CountDownLatch(0)));
+        config.initServices();
+
+        // Created while the warmup is still pending
+        config.getService(DbService.class);
+        Assert.assertEquals(Arrays.asList("init db"), events);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> {
+                Thread.sleep(100);
+                release.countDown();
+                return null;
+            });
+            
+            // Close waits for the pending warmup and also closes the lazy service
+            config.closeServices();
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(Arrays.asList("init db", "init warmup", "close db", "close warmup"), events);
+        Assert.assertEquals(ServiceState.CLOSED, config.getServiceState(DbService.class));
+        Assert.assertEquals(ServiceState.CLOSED, config.getServiceState(WarmupService.class));
+    }
+
+    @Test
+    public void testCriticalFailure() throws Exception {
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(new AsyncService(failedFuture(new IllegalStateException("boom")), true));
+        config.addService(new TrackingService("web", new ArrayList<>(), new CountDownLatch(0), AsyncService.class));
+        try {
+            config.initServices();
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("boom", ex.getMessage());
+        }
+        Assert.assertEquals(ServiceState.FAILED, config.getServiceState(AsyncService.class));
+        Assert.assertEquals(ServiceState.FAILED, config.getServiceState(TrackingService.class));
+        Assert.assertFalse(config.awaitServices(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLazyServices() throws Exception {
+
+        AtomicInteger created = new AtomicInteger();
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(DbService.class, () -> {
+            created.incrementAndGet();
+            return new DbService(events, new CountDownLatch(0));
+        });
+        config.addService(CacheService.class, () -> {
+            created.addAndGet(100);
+            return new FooService();
+        });
+
+        config.initServices();
+        Assert.assertEquals(0, created.get());
+        Assert.assertTrue(events.isEmpty());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<DbService>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> config.getService(DbService.class)));
+            }
+            DbService db = futures.get(0).get();
+            for (Future<DbService> fut : futures) {
+                Assert.assertSame(db, fut.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Constructed and initialized exactly once
+        Assert.assertEquals(1, created.get());
+        Assert.assertEquals(Arrays.asList("init db"), events);
+
+        // Only created services are closed
+        config.closeServices();
+        Assert.assertEquals(Arrays.asList("init db", "close db"), events);
+        Assert.assertEquals(ServiceState.CLOSED, config.getServiceState(DbService.class));
+        Assert.assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testRecursiveLazyService() throws Exception {
+
+        AtomicInteger created = new AtomicInteger();
+
+        BasicConfig config = new BasicConfig(new Parameters());
+        config.addService(CacheService.class, () -> {
+            created.incrementAndGet();
+            config.getService(CacheService.class);
+            return new FooService();
+        });
+
+        try {
+            config.getService(CacheService.class);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("Recursive lookup of lazy service: " + CacheService.class.getName(), ex.getMessage());
+        }
+        Assert.assertEquals(1, created.get());
+    }
+
+    private static CompletableFuture<Void> failedFuture(Throwable th) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(th);
+        return future;
+    }
+
+    static class WarmupService implements Service {
+
+        final CountDownLatch release;
+
+        WarmupService(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public boolean isCritical() {
+            return false;
+        }
+
+        @Override
+        public void init(Config config) {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    static class AsyncService implements Service {
+
+        final CompletableFuture<Void> future;
+        final boolean critical;
+
+        AsyncService(CompletableFuture<Void> future, boolean critical) {
+            this.future = future;
+            this.critical = critical;
+        }
+
+        @Override
+        public boolean isCritical() {
+            return critical;
+        }
+
+        @Override
+        public CompletableFuture<Void> initAsync(Config config, Executor executor) {
+            return future;
+        }
+    }
+
+    static class TrackingService implements Service {
+
+        final String name;
+        final List<String> events;
+        final CountDownLatch latch;
+        final Set<Class<? extends Service>> dependencies;
+
+        @SafeVarargs
+        TrackingService(String name, List<String> events, CountDownLatch latch, Class<? extends Service>... dependencies) {
+            this.name = name;
+            this.events = events;
+            this.latch = latch;
+            this.dependencies = new HashSet<>(Arrays.asList(dependencies));
+        }
+
+        @Override
+        public Set<Class<? extends Service>> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public void init(Config config) {
+            if (dependencies.isEmpty()) {
+                latch.countDown();
+                try {
+                    Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            events.add("init " + name);
+        }
+
+        @Override
+        public void close() {
+            events.add("close " + name);
+        }
+    }
+
+    static class DbService extends TrackingService {
+
+        DbService(List<String> events, CountDownLatch latch) {
+            super("db", events, latch);
+        }
+    }
+
+    static class QueueService extends TrackingService {
+
+        QueueService(List<String> events, CountDownLatch latch) {
+            super("queue", events, latch);
+        }
+    }
+
+    static class FailingCloseService implements Service {
+
+        @Override
+        public void close() {
+            throw new IllegalStateException("close failed");
+        }
+    }
+
+    static class SlowService extends TrackingService {
+
+        final long millis;
+
+        SlowService(List<String> events, long millis) {
+            super("slow", events, new CountDownLatch(0));
+            this.millis = millis;
+        }
+
+        @Override
+        public void init(Config config) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            super.init(config);
+        }
+    }
+
+    static class CycleA implements Service {
+
+        @Override
+        public Set<Class<? extends Service>> getDependencies() {
+            return Collections.singleton(CycleB.class);
+        }
+    }
+
+    static class CycleB implements Service {
+
+        @Override
+        public Set<Class<? extends Service>> getDependencies() {
+            return Collections.singleton(CycleA.class);
+        }
+    }
+
+    interface CacheService extends Service {
+    }
+
+    static class FooService implements CacheService {
+    }
+
+    static class BarService implements CacheService {
+    }
+
+    static class TypedBarService extends BarService {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Class<CacheService> getType() {
+            return CacheService.class;
+        }
+    }
+}